@@ -0,0 +1,69 @@
+package com.nikondsl.utils.stacktrace.benchmarks;
+
+import com.nikondsl.utils.stacktrace.impl.StackTraceCompacter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The same exception repeatedly thrown from deep down the stack of the benchmark
+ * thread: a usual exception compacted by compact, compared with an exception with
+ * no stack trace filled in compacted by capture, which takes the frames from the
+ * thread itself (with StackWalker on Java 9+). Both pay for the recursion.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CaptureBenchmark {
+
+    @Param({"100", "500"})
+    private int depth;
+
+    private StackTraceCompacter compacter;
+
+    private static final class LightweightException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        LightweightException(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        compacter = new StackTraceCompacter();
+    }
+
+    @Benchmark
+    public String init() {
+        return descend(depth, false);
+    }
+
+    @Benchmark
+    public String capture() {
+        return descend(depth, true);
+    }
+
+    private String descend(int remaining, boolean capture) {
+        if (remaining > 0) {
+            return descend(remaining - 1, capture);
+        }
+        if (capture) {
+            return compacter.capture(new LightweightException("order is not found"));
+        }
+        return compacter.compact(new IllegalStateException("order is not found"));
+    }
+}
@@ -0,0 +1,102 @@
+package com.nikondsl.utils.stacktrace.benchmarks;
+
+import com.nikondsl.utils.stacktrace.impl.StackTraceCompacter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single threaded cost of compaction of deep stacktraces: an exception seen before,
+ * an exception never seen before, a mix of both, and plain printStackTrace to compare with.
+ * Run with "-prof gc" to see allocation rate as well.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CompactionBenchmark {
+    private static final int VARIANTS = 4096;
+
+    @Param({"100", "250", "500"})
+    private int depth;
+
+    @Param({"0", "3", "10"})
+    private int causes;
+
+    private Throwable duplicate;
+    private List<Throwable> unique;
+    private StackTraceCompacter compacter;
+    private StackTraceCompacter forgettingCompacter;
+    private int next;
+    private final StringBuilder encoderBuffer = new StringBuilder(4096);
+
+    @Setup
+    public void setUp() {
+        duplicate = StackTraces.exception(depth, causes, -1);
+        unique = StackTraces.variants(VARIANTS, depth, causes);
+        compacter = new StackTraceCompacter();
+        compacter.compact(duplicate);
+        //remembers much less than the number of variants, so every one of them is new
+        forgettingCompacter = new StackTraceCompacter(64, 0, TimeUnit.MINUTES);
+    }
+
+    @Benchmark
+    public String duplicate() {
+        return compacter.compact(duplicate);
+    }
+
+    /**
+     * The way a log encoder calls it: into its own reused StringBuilder. The only
+     * allocation left is the copy of the frames made by Throwable.getStackTrace.
+     */
+    @Benchmark
+    public StringBuilder duplicateIntoBuilder() {
+        encoderBuffer.setLength(0);
+        compacter.compact(duplicate, encoderBuffer);
+        return encoderBuffer;
+    }
+
+    @Benchmark
+    public String unique() {
+        return forgettingCompacter.compact(nextUnique());
+    }
+
+    /**
+     * 9 of 10 exceptions are seen before.
+     */
+    @Benchmark
+    public String mixed() {
+        if (next % 10 != 0) {
+            next++;
+            return compacter.compact(duplicate);
+        }
+        return forgettingCompacter.compact(nextUnique());
+    }
+
+    @Benchmark
+    public String printStackTrace() {
+        StringWriter out = new StringWriter(4096);
+        duplicate.printStackTrace(new PrintWriter(out));
+        return out.toString();
+    }
+
+    private Throwable nextUnique() {
+        next++;
+        return unique.get(next & (VARIANTS - 1));
+    }
+}
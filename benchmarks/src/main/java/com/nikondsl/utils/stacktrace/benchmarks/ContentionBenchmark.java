@@ -0,0 +1,76 @@
+package com.nikondsl.utils.stacktrace.benchmarks;
+
+import com.nikondsl.utils.stacktrace.factory.CompacterFactory;
+import com.nikondsl.utils.stacktrace.impl.StackTraceCompacter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * All available cores compacting exceptions with the singleton from CompacterFactory,
+ * the way it's used by request threads of a server during an exception storm.
+ * Compare the score with the single threaded one of CompactionBenchmark, or run
+ * with "-t 1" and "-t 4" to see how it scales.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(Threads.MAX)
+@State(Scope.Benchmark)
+public class ContentionBenchmark {
+    private static final int VARIANTS = 4096;
+
+    @Param({"250"})
+    private int depth;
+
+    private Throwable duplicate;
+    private List<Throwable> unique;
+    private StackTraceCompacter compacter;
+
+    @State(Scope.Thread)
+    public static class Counter {
+        private int next;
+    }
+
+    @Setup
+    public void setUp() {
+        duplicate = StackTraces.exception(depth, 2, -1);
+        unique = StackTraces.variants(VARIANTS, depth, 2);
+        compacter = CompacterFactory.getInstance();
+        compacter.compact(duplicate);
+    }
+
+    /**
+     * The very same exception thrown by every thread.
+     */
+    @Benchmark
+    public String duplicate() {
+        return compacter.compact(duplicate);
+    }
+
+    /**
+     * 9 of 10 exceptions are the same one, the rest are 4096 different ones.
+     */
+    @Benchmark
+    public String mixed(Counter counter) {
+        int next = counter.next++;
+        if (next % 10 != 0) {
+            return compacter.compact(duplicate);
+        }
+        return compacter.compact(unique.get((next / 10) & (VARIANTS - 1)));
+    }
+}
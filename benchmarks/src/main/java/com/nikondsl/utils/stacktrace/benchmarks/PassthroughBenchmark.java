@@ -0,0 +1,56 @@
+package com.nikondsl.utils.stacktrace.benchmarks;
+
+import com.nikondsl.utils.stacktrace.impl.StackTraceCompacter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the compacter turned off by "stacktrace.compacter.off", compared with
+ * printStackTrace called directly. The property is only looked at once per ten
+ * seconds, so warm-up is long enough for the compacter to notice it before measuring.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dstacktrace.compacter.off=true")
+@State(Scope.Thread)
+public class PassthroughBenchmark {
+
+    @Param({"100", "500"})
+    private int depth;
+
+    private Throwable exception;
+    private StackTraceCompacter compacter;
+
+    @Setup
+    public void setUp() {
+        exception = StackTraces.exception(depth, 2, 0);
+        compacter = new StackTraceCompacter();
+    }
+
+    @Benchmark
+    public String passthrough() {
+        return compacter.compact(exception);
+    }
+
+    @Benchmark
+    public String printStackTrace() {
+        StringWriter out = new StringWriter(4096);
+        exception.printStackTrace(new PrintWriter(out));
+        return out.toString();
+    }
+}
@@ -0,0 +1,93 @@
+package com.nikondsl.utils.stacktrace.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Builds stacktraces looking like the ones thrown in a Spring application running
+ * in Tomcat: filter chains alternating Tomcat and Spring frames, AOP proxies with
+ * reflection, and Hibernate with a JDBC driver on top.
+ */
+final class StackTraces {
+
+    private StackTraces() {
+    }
+
+    /**
+     * @param depth number of frames.
+     * @param causes number of nested causes, each one with a half of the frames of its enclosing exception.
+     * @param variant makes the exception structurally different from the ones with another variant.
+     */
+    static Throwable exception(int depth, int causes, int variant) {
+        Throwable cause = null;
+        for (int level = causes; level > 0; level--) {
+            Throwable wrapped = new IllegalStateException("level " + level, cause);
+            wrapped.setStackTrace(stack(Math.max(40, depth >> level), variant + level));
+            cause = wrapped;
+        }
+        RuntimeException exception = new RuntimeException("Request failed for order " + variant, cause);
+        exception.setStackTrace(stack(depth, variant));
+        return exception;
+    }
+
+    static StackTraceElement[] stack(int depth, int variant) {
+        List<StackTraceElement> top = new ArrayList<>();
+        top.add(frame("com.example.orders.OrderRepositoryImpl", "findByCustomer", 40 + variant));
+        for (int i = 0; i < 6; i++) {
+            top.add(frame("com.mysql.cj.jdbc.ClientPreparedStatement", "executeQuery", 1000 + i));
+        }
+        for (int i = 0; i < 15; i++) {
+            top.add(frame("org.hibernate.internal.SessionImpl", "list", 1500 + i));
+        }
+        top.add(frame("com.example.orders.OrderService", "load", 77));
+        top.add(frame("jdk.internal.reflect.GeneratedMethodAccessor42", "invoke", -1));
+        top.add(frame("jdk.internal.reflect.DelegatingMethodAccessorImpl", "invoke", 43));
+        top.add(frame("java.lang.reflect.Method", "invoke", 566));
+        for (int i = 0; i < 8; i++) {
+            top.add(frame("org.springframework.aop.framework.ReflectiveMethodInvocation", "proceed", 180 + i));
+        }
+        top.add(frame("com.example.orders.OrderService$$EnhancerBySpringCGLIB$$4ce1056c", "load", -1));
+        top.add(frame("com.example.orders.OrderController", "get", 31));
+        top.add(frame("jdk.internal.reflect.NativeMethodAccessorImpl", "invoke0", -2));
+        top.add(frame("java.lang.reflect.Method", "invoke", 566));
+        for (int i = 0; i < 10; i++) {
+            top.add(frame("org.springframework.web.servlet.DispatcherServlet", "doDispatch", 1040 + i));
+        }
+
+        List<StackTraceElement> bottom = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            bottom.add(frame("org.apache.coyote.http11.Http11Processor", "service", 380 + i));
+        }
+        bottom.add(frame("org.apache.tomcat.util.threads.TaskThread$WrappingRunnable", "run", 61));
+        bottom.add(frame("java.lang.Thread", "run", 829));
+
+        List<StackTraceElement> result = new ArrayList<>(depth);
+        result.addAll(top);
+        for (int i = 0; result.size() + bottom.size() < depth; i++) {
+            //filter chain: every filter is a couple of Tomcat frames followed by a Spring one
+            if (i % 3 == 2) {
+                result.add(frame("org.springframework.web.filter.OncePerRequestFilter", "doFilter", 117));
+            } else {
+                result.add(frame("org.apache.catalina.core.ApplicationFilterChain", "internalDoFilter", 189 + i % 3));
+            }
+        }
+        result.addAll(bottom);
+        return result.subList(0, Math.min(depth, result.size())).toArray(new StackTraceElement[0]);
+    }
+
+    static List<Throwable> variants(int count, int depth, int causes) {
+        List<Throwable> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(exception(depth, causes, i));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    private static StackTraceElement frame(String className, String methodName, int line) {
+        String simpleName = className.substring(className.lastIndexOf('.') + 1);
+        int inner = simpleName.indexOf('$');
+        String fileName = line < 0 ? null : (inner < 0 ? simpleName : simpleName.substring(0, inner)) + ".java";
+        return new StackTraceElement(className, methodName, fileName, line);
+    }
+}
@@ -0,0 +1,232 @@
+package com.nikondsl.utils.stacktrace.async;
+
+import com.nikondsl.utils.stacktrace.impl.StackTraceCompacter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Moves compaction off the thread which has caught an exception. Exceptions are put
+ * into a bounded queue and a few worker threads compact them, and pass the results
+ * to a sink in batches. What happens when the queue is full is decided by the
+ * {@link OverflowPolicy}, so a storm of exceptions cannot stall the submitting threads
+ * unless BLOCK is chosen.
+ * USAGE:
+ * AsyncCompacter compacter = CompacterFactory.createAsync(traces -> traces.forEach(log::warn));
+ * ...
+ * compacter.submit(exception);
+ * ...
+ * compacter.close();
+ */
+public class AsyncCompacter implements AutoCloseable {
+    private static final long POLL_MILLIS = 100L;
+
+    private final StackTraceCompacter compacter;
+    private final CompactedTraceSink sink;
+    private final BlockingQueue<Throwable> queue;
+    private final int queueCapacity;
+    private final int batchSize;
+    private final OverflowPolicy overflowPolicy;
+    private final int sampleRate;
+    private final List<Thread> workers = new ArrayList<>();
+
+    private final AtomicLong sampleCounter = new AtomicLong();
+    //submits which have passed the check for being closed, but not the queue yet
+    private final AtomicInteger submitting = new AtomicInteger();
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private volatile boolean running = true;
+
+    /**
+     * @param compacter compacter to be used by all workers, usually the singleton one.
+     * @param sink receiver of compacted stacktraces.
+     * @param queueCapacity how many exceptions may wait for compaction.
+     * @param workerCount number of worker threads.
+     * @param batchSize maximum number of stacktraces passed to the sink at once.
+     * @param overflowPolicy what to do when the queue is full.
+     * @param sampleRate for {@link OverflowPolicy#SAMPLE} only one of that many exceptions is accepted
+     *                   when the queue is almost full.
+     */
+    public AsyncCompacter(StackTraceCompacter compacter, CompactedTraceSink sink, int queueCapacity,
+                          int workerCount, int batchSize, OverflowPolicy overflowPolicy, int sampleRate) {
+        this.compacter = Objects.requireNonNull(compacter);
+        this.sink = Objects.requireNonNull(sink);
+        this.overflowPolicy = Objects.requireNonNull(overflowPolicy);
+        if (queueCapacity <= 0 || workerCount <= 0 || batchSize <= 0 || sampleRate <= 0) {
+            throw new IllegalArgumentException("queue capacity, worker count, batch size and sample rate " +
+                    "should be more than 0, but were " + queueCapacity + ", " + workerCount + ", " +
+                    batchSize + ", " + sampleRate);
+        }
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.queueCapacity = queueCapacity;
+        this.batchSize = batchSize;
+        this.sampleRate = sampleRate;
+        for (int i = 0; i < workerCount; i++) {
+            Thread worker = new Thread(this::work, "stacktrace-compacter-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Hands the exception over to the workers.
+     * @param throwable exception to be compacted.
+     * @return false if the exception was dropped, always after {@link #close()}.
+     */
+    public boolean submit(Throwable throwable) {
+        Objects.requireNonNull(throwable);
+        //workers don't stop while a submit is in progress, so it can't be left in the queue
+        submitting.incrementAndGet();
+        boolean accepted;
+        try {
+            if (!running) {
+                accepted = false;
+            } else {
+                switch (overflowPolicy) {
+                    case BLOCK:
+                        accepted = put(throwable);
+                        break;
+                    case SAMPLE:
+                        accepted = isSampled() && queue.offer(throwable);
+                        break;
+                    default:
+                        accepted = queue.offer(throwable);
+                }
+            }
+        } finally {
+            submitting.decrementAndGet();
+        }
+        if (accepted) {
+            submitted.increment();
+        } else {
+            dropped.increment();
+        }
+        return accepted;
+    }
+
+    public long getSubmittedCount() {
+        return submitted.sum();
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return number of exceptions lost because their compaction has thrown an exception,
+     * plus number of batches lost because the sink has thrown one.
+     */
+    public long getFailureCount() {
+        return failures.sum();
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * Stops accepting new exceptions and waits until the queued ones, and the ones being
+     * submitted at the moment, are passed to the sink. Called by the sink, from a worker,
+     * it does not wait: the workers pass the rest to the sink and stop by themselves.
+     * If the calling thread is interrupted while waiting, the workers stop at once, the
+     * exceptions left in the queue are counted as dropped, and the interrupt is kept.
+     */
+    @Override
+    public void close() {
+        running = false;
+        if (workers.contains(Thread.currentThread())) {
+            //joining itself, or another worker closing at the same time, would never end
+            return;
+        }
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            for (Thread worker : workers) {
+                worker.interrupt();
+            }
+            List<Throwable> left = new ArrayList<>();
+            dropped.add(queue.drainTo(left));
+            Thread.currentThread().interrupt();
+            return;
+        }
+        //workers have stopped, so nothing can be in the queue, unless a worker has died
+        List<Throwable> batch = new ArrayList<>(batchSize);
+        while (queue.drainTo(batch, batchSize) > 0) {
+            process(batch);
+        }
+    }
+
+    private boolean put(Throwable throwable) {
+        try {
+            queue.put(throwable);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private boolean isSampled() {
+        if (queue.remainingCapacity() > queueCapacity / 4) {
+            return true;
+        }
+        return sampleCounter.incrementAndGet() % sampleRate == 0;
+    }
+
+    private void work() {
+        List<Throwable> batch = new ArrayList<>(batchSize);
+        //submits are checked first: once one is over, what it has put is in the queue
+        while (running || submitting.get() > 0 || !queue.isEmpty()) {
+            Throwable first;
+            try {
+                first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                if (running) {
+                    //close() is the only way to stop
+                    continue;
+                }
+                //interrupted by a close() which has stopped waiting, what's left is dropped
+                return;
+            }
+            if (first == null) {
+                continue;
+            }
+            batch.add(first);
+            queue.drainTo(batch, batchSize - 1);
+            process(batch);
+        }
+    }
+
+    private void process(List<Throwable> batch) {
+        try {
+            List<String> compactedTraces = new ArrayList<>(batch.size());
+            for (Throwable throwable : batch) {
+                try {
+                    compactedTraces.add(compacter.compact(throwable));
+                } catch (RuntimeException e) {
+                    //for instance getStackTrace or toString of the exception has failed
+                    failures.increment();
+                }
+            }
+            if (!compactedTraces.isEmpty()) {
+                sink.accept(compactedTraces);
+            }
+        } catch (RuntimeException e) {
+            //the worker must survive whatever a sink does
+            failures.increment();
+        } finally {
+            batch.clear();
+        }
+    }
+}
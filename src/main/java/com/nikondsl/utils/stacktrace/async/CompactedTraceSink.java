@@ -0,0 +1,18 @@
+package com.nikondsl.utils.stacktrace.async;
+
+import java.util.List;
+
+/**
+ * Receives compacted stacktraces from {@link AsyncCompacter}, one batch at a time.
+ * It's always called from a worker thread of the compacter, never from the
+ * thread which submitted the exception.
+ */
+@FunctionalInterface
+public interface CompactedTraceSink {
+
+    /**
+     * @param compactedTraces compacted stacktraces in the order they were taken from the queue.
+     *                        The list belongs to the sink and is never touched by the compacter again.
+     */
+    void accept(List<String> compactedTraces);
+}
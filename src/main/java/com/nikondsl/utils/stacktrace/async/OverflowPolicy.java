@@ -0,0 +1,20 @@
+package com.nikondsl.utils.stacktrace.async;
+
+/**
+ * What {@link AsyncCompacter} does with a submitted exception when its queue fills up.
+ */
+public enum OverflowPolicy {
+    /**
+     * Exceptions which do not fit into the queue are dropped.
+     */
+    DROP,
+    /**
+     * The submitting thread waits until there is room in the queue.
+     */
+    BLOCK,
+    /**
+     * Once the queue is three quarters full only every n-th exception is
+     * accepted, the rest are dropped; exceptions not fitting at all are dropped too.
+     */
+    SAMPLE
+}
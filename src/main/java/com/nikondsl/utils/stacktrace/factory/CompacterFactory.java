@@ -1,9 +1,60 @@
 package com.nikondsl.utils.stacktrace.factory;
 
+import com.nikondsl.utils.stacktrace.async.AsyncCompacter;
+import com.nikondsl.utils.stacktrace.async.CompactedTraceSink;
+import com.nikondsl.utils.stacktrace.async.OverflowPolicy;
+import com.nikondsl.utils.stacktrace.impl.RuleSet;
 import com.nikondsl.utils.stacktrace.impl.StackTraceCompacter;
+import com.nikondsl.utils.stacktrace.report.ExceptionSummaryReporter;
+import com.nikondsl.utils.stacktrace.store.MappedExceptionStore;
+import com.nikondsl.utils.stacktrace.utils.LimitedFrequency;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import javax.management.JMException;
 
 public class CompacterFactory {
-    private static final StackTraceCompacter instance = create();
+    private static final String CLASSPATH = "classpath:";
+    private static final StackTraceCompacter instance = createInstance();
+
+    private static StackTraceCompacter createInstance() {
+        StackTraceCompacter compacter = create();
+        String file = System.getProperty("stacktrace.compacter.store.file");
+        if (file != null) {
+            try {
+                StackTraceCompacter stored = create(MappedExceptionStore.open(Paths.get(file)));
+                //the last counts are written when the JVM exits
+                Runtime.getRuntime().addShutdownHook(new Thread(stored::flushStore, "stacktrace-compacter-store"));
+                compacter = stored;
+            } catch (IOException | RuntimeException e) {
+                //the compacter should work anyway, the failure is seen in its metrics
+                compacter.reportError("Exceptions will not be stored in " + file, e);
+            }
+        }
+        String rules = System.getProperty("stacktrace.compacter.rules");
+        if (rules != null) {
+            try {
+                if (rules.startsWith(CLASSPATH)) {
+                    compacter.setRules(RuleSet.loadResource(rules.substring(CLASSPATH.length())));
+                } else {
+                    compacter.watchRules(Paths.get(rules));
+                }
+            } catch (IOException | RuntimeException e) {
+                compacter.reportError("Rules are not loaded from " + rules, e);
+            }
+        }
+        String name = System.getProperty("stacktrace.compacter.jmx.name");
+        if (name != null) {
+            try {
+                compacter.registerMBean(name);
+            } catch (JMException | RuntimeException e) {
+                compacter.reportError("Metrics are not registered as " + name, e);
+            }
+        }
+        return compacter;
+    }
 
     /**
      * Use this method in order to create a new instance of compacter.
@@ -15,8 +66,36 @@ public class CompacterFactory {
         return new StackTraceCompacter();
     }
 
+    /**
+     * Use this method in order to create a new instance of compacter with
+     * its own limits for recalling the previous exceptions.
+     * @param cacheSize how many distinct exceptions are remembered.
+     * @param expireAfter time after the last throw when an exception is forgotten, 0 means never.
+     * @param timeUnit unit of the expiry time.
+     * @return new instance.
+     */
+    public static StackTraceCompacter create(int cacheSize, long expireAfter, TimeUnit timeUnit) {
+        return new StackTraceCompacter(cacheSize, expireAfter, timeUnit);
+    }
+
+    /**
+     * Use this method in order to create a new instance of compacter which
+     * keeps the exceptions in the given store, so they are known after a
+     * restart too. The singleton instance does the same when the system
+     * property "stacktrace.compacter.store.file" is set.
+     * @param store where exceptions are kept, it's not closed by the compacter.
+     * @return new instance.
+     */
+    public static StackTraceCompacter create(MappedExceptionStore store) {
+        return new StackTraceCompacter(store);
+    }
+
     /**
      * Use this method in order to return created instance in advance.
+     * Its rules are taken from the file of the system property
+     * "stacktrace.compacter.rules" (or "classpath:name"), when it's set;
+     * a file is taken again whenever it's changed. Its metrics are registered
+     * in JMX when "stacktrace.compacter.jmx.name" is set.
      * That will support for recalling the previous exceptions, so it
      * will not only compact the current exception, it also will make
      * the same exceptions disappear with only the line to be left:
@@ -28,4 +107,41 @@ public class CompacterFactory {
     public static StackTraceCompacter getInstance() {
         return instance;
     }
+
+    /**
+     * Use this method in order to compact exceptions in background threads.
+     * The singleton compacter is used, so the same exceptions are reported
+     * by a single line. Up to 1024 exceptions may wait in the queue, the rest
+     * are dropped.
+     * @param sink receiver of compacted stacktraces, called in batches of up to 64.
+     * @return started asynchronous compacter, it should be closed when not needed.
+     */
+    public static AsyncCompacter createAsync(CompactedTraceSink sink) {
+        return createAsync(sink, 1024, 1, OverflowPolicy.DROP);
+    }
+
+    /**
+     * Use this method in order to compact exceptions in background threads
+     * with the given queue capacity and overflow policy.
+     * @param sink receiver of compacted stacktraces, called in batches of up to 64.
+     * @param queueCapacity how many exceptions may wait for compaction.
+     * @param workerCount number of worker threads.
+     * @param overflowPolicy what to do when the queue is full; SAMPLE accepts every 10th exception.
+     * @return started asynchronous compacter, it should be closed when not needed.
+     */
+    public static AsyncCompacter createAsync(CompactedTraceSink sink, int queueCapacity, int workerCount,
+                                             OverflowPolicy overflowPolicy) {
+        return new AsyncCompacter(instance, sink, queueCapacity, workerCount, 64, overflowPolicy, 10);
+    }
+
+    /**
+     * Use this method in order to report every exception only once, with the
+     * summary of the 10 most thrown again ones written once per minute.
+     * The singleton compacter is used for recalling the previous exceptions.
+     * @param output receiver of summaries, for instance log::warn.
+     * @return new reporter.
+     */
+    public static ExceptionSummaryReporter createSummaryReporter(Consumer<String> output) {
+        return new ExceptionSummaryReporter(instance, output, LimitedFrequency.createOncePerMinute(), 10);
+    }
 }
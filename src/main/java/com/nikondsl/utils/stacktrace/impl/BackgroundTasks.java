@@ -0,0 +1,45 @@
+package com.nikondsl.utils.stacktrace.impl;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Runs periodic tasks of compacters in a single background thread, so threads
+ * compacting exceptions never read or write a file. A compacter which is not used
+ * any more is not kept alive by its tasks, they are just cancelled.
+ */
+final class BackgroundTasks {
+
+    private static final class Holder {
+        private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "stacktrace-compacter-background");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private BackgroundTasks() {
+    }
+
+    /**
+     * @param task should not refer to the compacter other than by its argument; it's
+     *             not run any more once it throws an exception.
+     * @return the task, to be cancelled when it's not needed any more.
+     */
+    static ScheduledFuture<?> schedule(StackTraceCompacter compacter, Consumer<StackTraceCompacter> task,
+                                       long period, TimeUnit timeUnit) {
+        WeakReference<StackTraceCompacter> reference = new WeakReference<>(compacter);
+        Runnable run = () -> {
+            StackTraceCompacter scheduled = reference.get();
+            if (scheduled == null) {
+                throw new IllegalStateException("the compacter is collected, no need to run its task");
+            }
+            task.accept(scheduled);
+        };
+        return Holder.SCHEDULER.scheduleWithFixedDelay(run, period, period, timeUnit);
+    }
+}
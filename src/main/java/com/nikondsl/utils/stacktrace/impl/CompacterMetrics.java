@@ -0,0 +1,222 @@
+package com.nikondsl.utils.stacktrace.impl;
+
+import com.nikondsl.utils.stacktrace.metrics.CompacterMetricsMXBean;
+import com.nikondsl.utils.stacktrace.metrics.LatencyHistogram;
+import com.nikondsl.utils.stacktrace.metrics.MetricsSnapshot;
+import com.nikondsl.utils.stacktrace.utils.BoundedCache;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters of a single compacter. Everything is recorded with LongAdders, so
+ * threads compacting at once do not contend for the same memory.
+ */
+final class CompacterMetrics implements CompacterMetricsMXBean {
+    private final long created = System.currentTimeMillis();
+    private final BoundedCache<?, ?> cache;
+    private final StackTraceCompacter compacter;
+    private final LongAdder compactions = new LongAdder();
+    private final LongSupplier compactionCount = compactions::sum;
+    //brought up to date by compactions and by readers, so it goes down when compactions stop
+    private final ExceptionRate compactionRate = new ExceptionRate(created, 0);
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder sampled = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private volatile String lastError;
+    private final LongAdder originalLength = new LongAdder();
+    private final LongAdder compactedLength = new LongAdder();
+    private final ConcurrentMap<String, LongAdder> collapsedFrames = new ConcurrentHashMap<>();
+    private final LatencyHistogram initLatency = new LatencyHistogram();
+    private final LatencyHistogram generateStringLatency = new LatencyHistogram();
+
+    CompacterMetrics(BoundedCache<?, ?> cache, StackTraceCompacter compacter) {
+        this.cache = cache;
+        this.compacter = compacter;
+    }
+
+    void compacted(boolean duplicate) {
+        if (duplicate) {
+            duplicates.increment();
+            return;
+        }
+        compactions.increment();
+        compactionRate.average(compactionCount, System.currentTimeMillis());
+    }
+
+    void error(String description) {
+        lastError = description;
+        errors.increment();
+    }
+
+    void sampled() {
+        sampled.increment();
+    }
+
+    /**
+     * @param original length printStackTrace would have printed, 0 if it's not known.
+     * @param compacted length written.
+     */
+    void measured(int original, int compacted) {
+        if (original > 0) {
+            originalLength.add(original);
+            compactedLength.add(compacted);
+        }
+    }
+
+    void collapsed(FrameBuffer frames) {
+        for (int i = 0; i < frames.size(); i++) {
+            FrameBuffer.StackTraceHolder holder = frames.get(i);
+            if (holder.isCompacted()) {
+                collapsedFrames.computeIfAbsent(holder.getCompactName(), name -> new LongAdder())
+                        .add(holder.getCounter());
+            }
+        }
+    }
+
+    LatencyHistogram getInitHistogram() {
+        return initLatency;
+    }
+
+    LatencyHistogram getGenerateStringHistogram() {
+        return generateStringLatency;
+    }
+
+    MetricsSnapshot snapshot() {
+        return new MetricsSnapshot(System.currentTimeMillis() - created, compactions.sum(), duplicates.sum(),
+                sampled.sum(), getCompactionsPerSecond(), originalLength.sum(), compactedLength.sum(), getCollapsedFrames(), cache.getStatistics(),
+                initLatency.snapshot(), generateStringLatency.snapshot(), errors.sum(), lastError);
+    }
+
+    @Override
+    public String getMode() {
+        return compacter.getMode().name();
+    }
+
+    @Override
+    public void setMode(String mode) {
+        compacter.setMode(CompactionMode.valueOf(mode));
+    }
+
+    @Override
+    public boolean isTurnedOff() {
+        return compacter.isTurnedOff();
+    }
+
+    @Override
+    public long getCompactions() {
+        return compactions.sum();
+    }
+
+    @Override
+    public long getDuplicates() {
+        return duplicates.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public String getLastError() {
+        return lastError;
+    }
+
+    @Override
+    public long getSampledOut() {
+        return sampled.sum();
+    }
+
+    @Override
+    public double getStormRate() {
+        return compacter.getStormRate();
+    }
+
+    @Override
+    public void setStormRate(double perSecond) {
+        compacter.setStormRate(perSecond);
+    }
+
+    @Override
+    public double getCompactionsPerSecond() {
+        return compactionRate.average(compactionCount, System.currentTimeMillis());
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        long original = originalLength.sum();
+        return original == 0 ? 1.0 : (double) compactedLength.sum() / original;
+    }
+
+    @Override
+    public Map<String, Long> getCollapsedFrames() {
+        Map<String, Long> result = new TreeMap<>();
+        collapsedFrames.forEach((name, counter) -> result.put(name, counter.sum()));
+        return result;
+    }
+
+    @Override
+    public int getCacheSize() {
+        return cache.size();
+    }
+
+    @Override
+    public int getCacheMaximumSize() {
+        return cache.getStatistics().getMaximumSize();
+    }
+
+    @Override
+    public double getCacheHitRate() {
+        return cache.getStatistics().getHitRate();
+    }
+
+    @Override
+    public long getCacheEvictions() {
+        return cache.getStatistics().getEvictionCount();
+    }
+
+    @Override
+    public long getCacheExpirations() {
+        return cache.getStatistics().getExpirationCount();
+    }
+
+    @Override
+    public long getInitLatencyMeanMicros() {
+        return micros(initLatency.snapshot().getMean());
+    }
+
+    @Override
+    public long getInitLatency99thPercentileMicros() {
+        return micros(initLatency.snapshot().getPercentile(99));
+    }
+
+    @Override
+    public long getInitLatencyMaxMicros() {
+        return micros(initLatency.snapshot().getMax());
+    }
+
+    @Override
+    public long getGenerateStringLatencyMeanMicros() {
+        return micros(generateStringLatency.snapshot().getMean());
+    }
+
+    @Override
+    public long getGenerateStringLatency99thPercentileMicros() {
+        return micros(generateStringLatency.snapshot().getPercentile(99));
+    }
+
+    @Override
+    public long getGenerateStringLatencyMaxMicros() {
+        return micros(generateStringLatency.snapshot().getMax());
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
@@ -0,0 +1,40 @@
+package com.nikondsl.utils.stacktrace.impl;
+
+/**
+ * Everything a call of a compacter depends on, so it's learnt by a single volatile
+ * read and stays the same till the call is over, whatever other threads change.
+ * Instances are never modified; a change means a new instance.
+ */
+final class CompacterState {
+    final CompactionMode mode;
+    final boolean turnedOff;
+    final RuleMatcher matcher;
+    //throws per second of an exception above which its repeats are written sparsely, 0 means never
+    final double stormRate;
+    //System.nanoTime() after which the system property and the rules file are checked again
+    final long nextCheck;
+
+    CompacterState(CompactionMode mode, boolean turnedOff, RuleMatcher matcher, double stormRate, long nextCheck) {
+        this.mode = mode;
+        this.turnedOff = turnedOff;
+        this.matcher = matcher;
+        this.stormRate = stormRate;
+        this.nextCheck = nextCheck;
+    }
+
+    CompacterState withMode(CompactionMode mode, boolean turnedOff) {
+        return new CompacterState(mode, turnedOff, matcher, stormRate, nextCheck);
+    }
+
+    CompacterState withMatcher(RuleMatcher matcher) {
+        return new CompacterState(mode, turnedOff, matcher, stormRate, nextCheck);
+    }
+
+    CompacterState withStormRate(double stormRate) {
+        return new CompacterState(mode, turnedOff, matcher, stormRate, nextCheck);
+    }
+
+    CompacterState withNextCheck(long nextCheck) {
+        return new CompacterState(mode, turnedOff, matcher, stormRate, nextCheck);
+    }
+}
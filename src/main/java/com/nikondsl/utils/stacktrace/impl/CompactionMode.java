@@ -0,0 +1,20 @@
+package com.nikondsl.utils.stacktrace.impl;
+
+/**
+ * Whether a compacter compacts exceptions or prints them as they are.
+ */
+public enum CompactionMode {
+    /**
+     * Compacts exceptions.
+     */
+    ON,
+    /**
+     * Prints exceptions as printStackTrace does and remembers nothing.
+     */
+    OFF,
+    /**
+     * Turned off while the system property "stacktrace.compacter.off" is set, which is
+     * checked once per ten seconds.
+     */
+    SYSTEM_PROPERTY
+}
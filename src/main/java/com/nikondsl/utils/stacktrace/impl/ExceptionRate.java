@@ -0,0 +1,116 @@
+package com.nikondsl.utils.stacktrace.impl;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.function.LongSupplier;
+
+/**
+ * How often an exception is thrown, as an exponentially weighted moving average of
+ * throws per second, and whether it's thrown so often that only the 1st, 10th, 100th
+ * and so on repeat is written. The average is updated once a second by the thread
+ * which wins a CAS for the next window, every other call only reads a couple of
+ * volatile fields; nothing is locked. The next repeat written is moved on, and the
+ * storm is started and over, by CAS only. The exception calms down once its rate falls
+ * under half of the threshold.
+ */
+final class ExceptionRate {
+    static final long WINDOW_MILLIS = 1000;
+    //the average forgets a rate in a few seconds
+    private static final double DECAY_MILLIS = 2000;
+    private static final long MAX_STEP = Long.MAX_VALUE / 10;
+
+    private static final AtomicLongFieldUpdater<ExceptionRate> WINDOW_START =
+            AtomicLongFieldUpdater.newUpdater(ExceptionRate.class, "windowStart");
+    private static final AtomicLongFieldUpdater<ExceptionRate> NEXT_WRITTEN =
+            AtomicLongFieldUpdater.newUpdater(ExceptionRate.class, "nextWritten");
+
+    private volatile long windowStart;
+    //count at the start of the window
+    private volatile long windowCount;
+    private volatile double rate;
+    //count at which the storm has started
+    private volatile long stormStart;
+    //count of the next repeat written, 0 if it's not a storm now
+    private volatile long nextWritten;
+
+    ExceptionRate(long now, long count) {
+        this.windowStart = now;
+        this.windowCount = count;
+    }
+
+    /**
+     * @param count number of throws so far, including this one.
+     * @param threshold throws per second above which repeats are written sparsely.
+     * @return true if this repeat is to be written.
+     */
+    boolean isWritten(long count, long now, double threshold) {
+        long start = windowStart;
+        if (now - start >= WINDOW_MILLIS && WINDOW_START.compareAndSet(this, start, now)) {
+            if (update(count, now - start, threshold)) {
+                //the first repeat of a storm
+                return true;
+            }
+        }
+        long next = nextWritten;
+        if (next == 0) {
+            return true;
+        }
+        if (count < next) {
+            return false;
+        }
+        long step = next - stormStart;
+        return NEXT_WRITTEN.compareAndSet(this, next, stormStart + (step >= MAX_STEP ? step : step * 10));
+    }
+
+    /**
+     * Brings the average up to date once a window is over, without looking for storms.
+     * @param counter number of events so far, read only when a window is over.
+     * @return events per second, averaged over the last few seconds.
+     */
+    double average(LongSupplier counter, long now) {
+        long start = windowStart;
+        if (now - start >= WINDOW_MILLIS && WINDOW_START.compareAndSet(this, start, now)) {
+            update(counter.getAsLong(), now - start, Double.POSITIVE_INFINITY);
+        }
+        return rate;
+    }
+
+    /**
+     * @return true if a storm has just started.
+     */
+    private boolean update(long count, long elapsed, double threshold) {
+        //a window longer than a second means nothing was thrown after its first second,
+        //otherwise the window would have been over earlier
+        long busy = Math.min(elapsed, WINDOW_MILLIS);
+        double current = (count - windowCount) * 1000.0 / busy;
+        windowCount = count;
+        double average = rate + (1 - Math.exp(-busy / DECAY_MILLIS)) * (current - rate);
+        average *= Math.exp(-(elapsed - busy) / DECAY_MILLIS);
+        rate = average;
+        if (average > threshold) {
+            if (nextWritten != 0) {
+                return false;
+            }
+            //read only when nextWritten is not 0, so it's set before
+            stormStart = count;
+            return NEXT_WRITTEN.compareAndSet(this, 0, count + 10);
+        }
+        if (average < threshold / 2) {
+            //the repeat written last may move it on meanwhile
+            long next;
+            while ((next = nextWritten) != 0 && !NEXT_WRITTEN.compareAndSet(this, next, 0)) {
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return throws per second, averaged over the last few seconds the exception was thrown in.
+     */
+    double getRate() {
+        return rate;
+    }
+
+    boolean isStorm() {
+        return nextWritten != 0;
+    }
+}
@@ -0,0 +1,133 @@
+package com.nikondsl.utils.stacktrace.impl;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What is remembered about an exception seen before: how many times and when
+ * it was thrown, and how it looked like the first time.
+ * The number of times is kept striped in a LongAdder, so threads throwing the same
+ * exception at once increment their own cells instead of a single contended one.
+ * A thread merges the cells when it needs the total, which is exact once nobody is
+ * counting and may miss concurrent increments otherwise. Only the first time is
+ * decided exactly: a single thread ever gets 1 from {@link #increment()}.
+ */
+final class ExceptionRecord {
+    //last seen time is refreshed not more often than this, it's for reports only
+    static final long LAST_SEEN_GRANULARITY_MILLIS = 10;
+
+    private static final AtomicIntegerFieldUpdater<ExceptionRecord> REPORTED =
+            AtomicIntegerFieldUpdater.newUpdater(ExceptionRecord.class, "reported");
+
+    private final long id;
+    private final String description;
+    private final long firstSeen;
+    private final int restoredCount;
+    private final LongAdder counter = new LongAdder();
+    //1 when the first time has been given away to some thread
+    private volatile int reported;
+    private volatile long lastSeen;
+    private volatile int printedLength;
+    private final ExceptionRate rate;
+    //count written to the store last, touched by the thread flushing the store only
+    private int storedCount;
+
+    ExceptionRecord(long id, Throwable throwable) {
+        this(id, throwable, System.currentTimeMillis(), 0);
+    }
+
+    /**
+     * Record of an exception counted before, for instance by a previous run.
+     */
+    ExceptionRecord(long id, Throwable throwable, long firstSeen, int count) {
+        this.id = id;
+        this.description = String.valueOf(throwable);
+        this.firstSeen = firstSeen;
+        this.restoredCount = count;
+        this.lastSeen = System.currentTimeMillis();
+        this.reported = count > 0 ? 1 : 0;
+        this.rate = new ExceptionRate(lastSeen, count);
+        this.storedCount = count;
+        counter.add(count);
+    }
+
+    /**
+     * Counts one more time.
+     * @return 1 for exactly one caller, the first one; otherwise the total merged from
+     * all cells, which is at least 2.
+     */
+    int increment() {
+        counter.increment();
+        long now = System.currentTimeMillis();
+        //don't write the shared field on every throw, every core would want the line
+        if (now - lastSeen >= LAST_SEEN_GRANULARITY_MILLIS) {
+            lastSeen = now;
+        }
+        if (reported == 0 && REPORTED.compareAndSet(this, 0, 1)) {
+            return 1;
+        }
+        return (int) Math.max(2, Math.min(counter.sum(), Integer.MAX_VALUE));
+    }
+
+    /**
+     * @param counter returned by {@link #increment()} for this repeat.
+     * @param now time in milliseconds.
+     * @param stormRate throws per second above which only the 1st, 10th, 100th... repeat is written.
+     * @return true if this repeat is to be written.
+     */
+    boolean isWritten(int counter, long now, double stormRate) {
+        return rate.isWritten(counter, now, stormRate);
+    }
+
+    /**
+     * @return throws per second lately, known only when storms are looked for.
+     */
+    double getRate() {
+        return rate.getRate();
+    }
+
+    long getId() {
+        return id;
+    }
+
+    /**
+     * @return total merged from all cells, exact when nobody is counting at the moment.
+     */
+    int getCount() {
+        return (int) Math.min(counter.sum(), Integer.MAX_VALUE);
+    }
+
+    long getFirstSeen() {
+        return firstSeen;
+    }
+
+    /**
+     * @return time the exception was thrown last, up to {@link #LAST_SEEN_GRANULARITY_MILLIS}.
+     */
+    long getLastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * @return length printStackTrace prints for the exception, roughly; 0 if not known yet.
+     */
+    int getPrintedLength() {
+        return printedLength;
+    }
+
+    void setPrintedLength(int printedLength) {
+        this.printedLength = printedLength;
+    }
+
+    int getStoredCount() {
+        return storedCount;
+    }
+
+    void setStoredCount(int storedCount) {
+        this.storedCount = storedCount;
+    }
+
+    ExceptionSummary toSummary() {
+        return new ExceptionSummary(id, description, getCount(), firstSeen, lastSeen, restoredCount);
+    }
+}
@@ -0,0 +1,78 @@
+package com.nikondsl.utils.stacktrace.impl;
+
+/**
+ * Immutable snapshot of what a compacter knows about an exception seen before.
+ */
+public final class ExceptionSummary {
+    private final long id;
+    private final String description;
+    private final long count;
+    private final long firstSeen;
+    private final long lastSeen;
+    private final long restoredCount;
+
+    public ExceptionSummary(long id, String description, long count, long firstSeen, long lastSeen) {
+        this(id, description, count, firstSeen, lastSeen, 0);
+    }
+
+    /**
+     * @param restoredCount count the exception had in the store when this run met it first.
+     */
+    public ExceptionSummary(long id, String description, long count, long firstSeen, long lastSeen,
+                            long restoredCount) {
+        this.id = id;
+        this.description = description;
+        this.count = count;
+        this.firstSeen = firstSeen;
+        this.lastSeen = lastSeen;
+        this.restoredCount = restoredCount;
+    }
+
+    /**
+     * @return fingerprint of the exception, the one printed as its id.
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * @return class and message of the exception as it was thrown the first time.
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return time in milliseconds since the epoch.
+     */
+    public long getFirstSeen() {
+        return firstSeen;
+    }
+
+    /**
+     * @return time in milliseconds since the epoch.
+     */
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * @return count restored from the store, thrown by previous runs; 0 if none.
+     */
+    public long getRestoredCount() {
+        return restoredCount;
+    }
+
+    @Override
+    public String toString() {
+        return "ExceptionSummary{" +
+                "id=" + Long.toUnsignedString(id) +
+                ", count=" + count +
+                ", description='" + description + '\'' +
+                '}';
+    }
+}
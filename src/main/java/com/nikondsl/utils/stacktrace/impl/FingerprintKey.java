@@ -0,0 +1,43 @@
+package com.nikondsl.utils.stacktrace.impl;
+
+/**
+ * Key of remembered exceptions. It's mutable, so every thread can look up with
+ * its own reused instance instead of boxing the fingerprint into a new Long on
+ * every call; only new instances are ever stored in a cache.
+ */
+final class FingerprintKey {
+    private long id;
+
+    FingerprintKey() {
+    }
+
+    FingerprintKey(long id) {
+        this.id = id;
+    }
+
+    FingerprintKey set(long id) {
+        this.id = id;
+        return this;
+    }
+
+    long getId() {
+        return id;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return id == ((FingerprintKey) o).id;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(id);
+    }
+
+    @Override
+    public String toString() {
+        return Long.toUnsignedString(id);
+    }
+}
@@ -0,0 +1,168 @@
+package com.nikondsl.utils.stacktrace.impl;
+
+import com.nikondsl.utils.stacktrace.utils.Appendables;
+
+import java.io.IOException;
+
+/**
+ * Frames of an exception with runs of frames matching the same rule collapsed
+ * into one. Every thread reuses its own buffer, so compacting an exception does
+ * not allocate a holder per frame; a nested compaction on the same thread gets
+ * a fresh buffer.
+ */
+final class FrameBuffer {
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int MAX_RETAINED_CAPACITY = 4096;
+    private static final ThreadLocal<FrameBuffer> BUFFERS = ThreadLocal.withInitial(FrameBuffer::new);
+
+    private StackTraceHolder[] holders = new StackTraceHolder[INITIAL_CAPACITY];
+    private int size;
+    private boolean inUse;
+
+    static class StackTraceHolder {
+        private StackTraceElement element;
+        private int counter = 0;
+        private boolean compacted = false;
+        private ProcessorRule ruleWhichMet;
+        private String compactName;
+        private String text;
+
+        void reset(StackTraceElement element) {
+            this.element = element;
+            text = null;
+            counter = 0;
+            compacted = false;
+            ruleWhichMet = null;
+            compactName = null;
+        }
+
+        StackTraceElement getElement() {
+            return element;
+        }
+
+        String getCompactName() {
+            return compactName;
+        }
+
+        void incrementCounter() {
+            counter++;
+        }
+
+        int getCounter() {
+            return counter;
+        }
+
+        void setCompactName(String compactName) {
+            this.compactName = compactName;
+            compacted = true;
+        }
+
+        boolean isCompacted() {
+            return compacted;
+        }
+
+        /**
+         * @return number of characters appended.
+         */
+        int appendTo(Appendable out) throws IOException {
+            if (!compacted) {
+                String frame = text != null ? text : element.toString();
+                out.append(frame);
+                return frame.length();
+            }
+            out.append('\t').append(compactName);
+            if (counter <= 1) {
+                return 1 + compactName.length();
+            }
+            out.append("\t<");
+            int digits = Appendables.appendNumber(counter, out);
+            out.append(" lines>");
+            return 1 + compactName.length() + 2 + digits + 7;
+        }
+    }
+
+    static FrameBuffer acquire() {
+        FrameBuffer buffer = BUFFERS.get();
+        if (buffer.inUse) {
+            buffer = new FrameBuffer();
+        }
+        buffer.inUse = true;
+        return buffer;
+    }
+
+    void release() {
+        for (int i = 0; i < size; i++) {
+            //do not keep frames of the exception alive
+            holders[i].reset(null);
+        }
+        size = 0;
+        if (holders.length > MAX_RETAINED_CAPACITY) {
+            holders = new StackTraceHolder[INITIAL_CAPACITY];
+        }
+        inUse = false;
+    }
+
+    /**
+     * Collapses the given number of top frames.
+     */
+    void collapse(StackTraceElement[] stackTrace, int length, RuleMatcher matcher) {
+        StackTraceHolder last = null;
+        for (int i = 0; i < length; i++) {
+            StackTraceElement element = stackTrace[i];
+            ProcessorRule rule = matcher.match(element.getClassName());
+            if (rule == null) {
+                last = add(element);
+                continue;
+            }
+            if (last != null &&
+                last.isCompacted() &&
+                last.ruleWhichMet == rule) {
+                //already compacted
+                last.incrementCounter();
+                continue;
+            }
+            //put first compacted
+            last = add(element);
+            last.ruleWhichMet = rule;
+            last.setCompactName(rule.getCompactedName());
+            last.incrementCounter();
+        }
+    }
+
+    /**
+     * Adds a frame already turned into text, for instance a decoded one.
+     */
+    void addFrame(String text) {
+        add(null).text = text;
+    }
+
+    void addCollapsed(String compactName, int counter) {
+        StackTraceHolder holder = add(null);
+        holder.setCompactName(compactName);
+        holder.counter = counter;
+    }
+
+    int size() {
+        return size;
+    }
+
+    StackTraceHolder get(int index) {
+        return holders[index];
+    }
+
+    private StackTraceHolder add(StackTraceElement element) {
+        if (size == holders.length) {
+            StackTraceHolder[] grown = new StackTraceHolder[holders.length * 2];
+            System.arraycopy(holders, 0, grown, 0, size);
+            holders = grown;
+        }
+        StackTraceHolder holder = holders[size];
+        if (holder == null) {
+            holder = new StackTraceHolder();
+            holders[size] = holder;
+        }
+        holder.reset(element);
+        size++;
+        return holder;
+    }
+}
@@ -0,0 +1,55 @@
+package com.nikondsl.utils.stacktrace.impl;
+
+/**
+ * Exception read back from its printed form, for instance from a log file, so it
+ * can be compacted like a thrown one. It prints the header line it's read from,
+ * and it's fingerprinted by the class name in that line rather than by its own class.
+ * USAGE:
+ * ParsedThrowable parsed = new ParsedThrowable("java.lang.IllegalStateException: boom");
+ * parsed.setStackTrace(frames);
+ * compacter.compact(parsed, out);
+ */
+public final class ParsedThrowable extends Throwable {
+    private static final String THREAD_PREFIX = "Exception in thread \"";
+
+    private final String header;
+    private final String className;
+
+    /**
+     * @param header the line printed for the exception, like "java.io.IOException: closed".
+     */
+    public ParsedThrowable(String header) {
+        super(header);
+        this.header = header;
+        this.className = classNameOf(header);
+    }
+
+    /**
+     * @return class name the header starts with, the whole header if there is no message.
+     */
+    public String getClassName() {
+        return className;
+    }
+
+    //frames are given by setStackTrace, the ones of the parser are of no use
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return header;
+    }
+
+    private static String classNameOf(String header) {
+        int start = 0;
+        if (header.startsWith(THREAD_PREFIX)) {
+            //Exception in thread "main" java.lang.IllegalStateException: ...
+            int end = header.indexOf("\" ", THREAD_PREFIX.length());
+            start = end < 0 ? 0 : end + 2;
+        }
+        int end = header.indexOf(':', start);
+        return (end < 0 ? header.substring(start) : header.substring(start, end)).trim();
+    }
+}
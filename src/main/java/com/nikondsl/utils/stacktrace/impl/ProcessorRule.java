@@ -0,0 +1,58 @@
+package com.nikondsl.utils.stacktrace.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Named set of class name prefixes. Frames whose class starts with one of
+ * the prefixes are either collapsed into a single line with the rule's name,
+ * or always left expanded, depending on how the rule was registered.
+ */
+class ProcessorRule {
+    private final Set<String> rules;
+    private final String compactedName;
+
+    ProcessorRule(String compactedName, String rule) {
+        rules = new HashSet<>();
+        rules.add(rule);
+        this.compactedName = compactedName;
+    }
+
+    ProcessorRule(String compactedName, String[] newRules) {
+        rules = new HashSet<>();
+        rules.addAll(Arrays.asList(newRules));
+        this.compactedName = compactedName;
+    }
+
+    String getCompactedName() {
+        return compactedName;
+    }
+
+    Set<String> getRules() {
+        return Collections.unmodifiableSet(rules);
+    }
+
+    @Override
+    public String toString() {
+        return "ProcessorRule{" +
+                "" + compactedName +
+                '}';
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ProcessorRule that = (ProcessorRule) o;
+        return Objects.equals(rules, that.rules) &&
+                Objects.equals(compactedName, that.compactedName);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(rules, compactedName);
+    }
+}
@@ -0,0 +1,218 @@
+package com.nikondsl.utils.stacktrace.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * Prefix trie compiled from the patterns of all rules, so a frame is classified
+ * by walking its class name once instead of testing every pattern of every rule.
+ * Instances are never modified after construction; changing the rules means
+ * building a new matcher.
+ * The result for every class name is remembered, as the same framework classes
+ * appear in almost every exception, so after warm-up a frame is classified by a
+ * single hash lookup. Generated classes, such as reflection accessors, lambdas and
+ * CGLIB or ByteBuddy proxies, get new names all the time, so they are not remembered;
+ * once "stacktrace.compacter.classified.size" classes are, the memo starts over with the
+ * ones met from then on. The memo belongs to the matcher, so it's dropped together
+ * with the matcher once rules are changed.
+ * Besides prefixes, a rule may have patterns "glob:com.example.*.internal.**"
+ * (* is any part of a name between dots, ** is anything) and "regex:..." matched
+ * against the whole class name. They are compiled here once and tested in order
+ * only when no prefix matches. A rule to be left expanded wins over any other.
+ */
+final class RuleMatcher {
+    private static final int MAX_CLASSIFIED = Integer.getInteger("stacktrace.compacter.classified.size", 10_000);
+    private static final ProcessorRule NO_RULE = new ProcessorRule("", new String[0]);
+
+    static final String GLOB = "glob:";
+    static final String REGEX = "regex:";
+
+    private final Node root = new Node();
+    private final List<Pattern> patternsToCollapse = new ArrayList<>();
+    private final List<ProcessorRule> patternRules = new ArrayList<>();
+    private final List<Pattern> patternsToLeftExpanded = new ArrayList<>();
+    private final ConcurrentMap<String, ProcessorRule> classified = new ConcurrentHashMap<>();
+
+    /**
+     * @throws java.util.regex.PatternSyntaxException if a regex of a rule is wrong.
+     */
+    RuleMatcher(Collection<ProcessorRule> rulesToCollapse, Collection<ProcessorRule> rulesToLeftExpanded) {
+        for (ProcessorRule rule : rulesToCollapse) {
+            for (String pattern : rule.getRules()) {
+                Pattern compiled = compile(pattern);
+                if (compiled != null) {
+                    patternsToCollapse.add(compiled);
+                    patternRules.add(rule);
+                    continue;
+                }
+                Node node = insert(pattern);
+                //the earlier registered rule wins for the very same prefix
+                if (node.rule == null) {
+                    node.rule = rule;
+                }
+            }
+        }
+        for (ProcessorRule rule : rulesToLeftExpanded) {
+            for (String pattern : rule.getRules()) {
+                Pattern compiled = compile(pattern);
+                if (compiled != null) {
+                    patternsToLeftExpanded.add(compiled);
+                } else {
+                    insert(pattern).expanded = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return compiled glob or regex, or null if the pattern is a plain prefix.
+     */
+    static Pattern compile(String pattern) {
+        if (pattern.startsWith(REGEX)) {
+            return Pattern.compile(pattern.substring(REGEX.length()));
+        }
+        if (!pattern.startsWith(GLOB)) {
+            return null;
+        }
+        StringBuilder regex = new StringBuilder(pattern.length() * 2);
+        for (int i = GLOB.length(); i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '*' && i + 1 < pattern.length() && pattern.charAt(i + 1) == '*') {
+                regex.append(".*");
+                i++;
+            } else if (c == '*') {
+                regex.append("[^.]*");
+            } else if (c == '?') {
+                regex.append("[^.]");
+            } else if (Character.isLetterOrDigit(c) || c == '_' || c == '$') {
+                regex.append(c);
+            } else {
+                regex.append('\\').append(c);
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * Finds a rule to collapse the frame with.
+     * @param className class name of the frame.
+     * @return the rule with the longest prefix of the class name, or null if
+     * nothing matches or the class is covered by a rule to be left expanded.
+     */
+    ProcessorRule match(String className) {
+        ProcessorRule rule = classified.get(className);
+        if (rule == null) {
+            rule = walk(className);
+            if (!isGenerated(className)) {
+                if (classified.size() >= MAX_CLASSIFIED) {
+                    //classes in use now are back after a few lookups, the ones not used any more are gone
+                    classified.clear();
+                }
+                classified.putIfAbsent(className, rule == null ? NO_RULE : rule);
+            }
+            return rule;
+        }
+        return rule == NO_RULE ? null : rule;
+    }
+
+    /**
+     * @return true for a class generated at runtime, with a name hardly ever met again.
+     */
+    static boolean isGenerated(String className) {
+        //"$$" of proxies and of lambdas, "/" of hidden classes
+        return className.contains("$$") || className.contains("$Lambda") || className.indexOf('/') >= 0 ||
+                className.startsWith("sun.reflect.Generated") || className.startsWith("jdk.internal.reflect.Generated");
+    }
+
+    int classifiedSize() {
+        return classified.size();
+    }
+
+    private ProcessorRule walk(String className) {
+        for (Pattern pattern : patternsToLeftExpanded) {
+            if (pattern.matcher(className).matches()) {
+                return null;
+            }
+        }
+        ProcessorRule found = walkPrefixes(className);
+        if (found != null) {
+            return found == NO_RULE ? null : found;
+        }
+        for (int i = 0; i < patternsToCollapse.size(); i++) {
+            if (patternsToCollapse.get(i).matcher(className).matches()) {
+                return patternRules.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the rule with the longest prefix, NO_RULE if the class is to be left
+     * expanded, or null if no prefix matches.
+     */
+    private ProcessorRule walkPrefixes(String className) {
+        Node node = root;
+        if (node.expanded) {
+            return NO_RULE;
+        }
+        ProcessorRule found = node.rule;
+        for (int i = 0; i < className.length(); i++) {
+            node = node.next(className.charAt(i));
+            if (node == null) {
+                break;
+            }
+            if (node.expanded) {
+                return NO_RULE;
+            }
+            if (node.rule != null) {
+                found = node.rule;
+            }
+        }
+        return found;
+    }
+
+    private Node insert(String pattern) {
+        Node node = root;
+        for (int i = 0; i < pattern.length(); i++) {
+            node = node.getOrAdd(pattern.charAt(i));
+        }
+        return node;
+    }
+
+    private static final class Node {
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        private ProcessorRule rule;
+        private boolean expanded;
+
+        Node next(char c) {
+            int index = Arrays.binarySearch(keys, c);
+            return index < 0 ? null : children[index];
+        }
+
+        Node getOrAdd(char c) {
+            int index = Arrays.binarySearch(keys, c);
+            if (index >= 0) {
+                return children[index];
+            }
+            int insertAt = -index - 1;
+            char[] newKeys = new char[keys.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, insertAt);
+            System.arraycopy(children, 0, newChildren, 0, insertAt);
+            System.arraycopy(keys, insertAt, newKeys, insertAt + 1, keys.length - insertAt);
+            System.arraycopy(children, insertAt, newChildren, insertAt + 1, children.length - insertAt);
+            Node child = new Node();
+            newKeys[insertAt] = c;
+            newChildren[insertAt] = child;
+            keys = newKeys;
+            children = newChildren;
+            return child;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.nikondsl.utils.stacktrace.impl;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Immutable set of rules, compiled into a matcher once, so it can be shared by any
+ * number of compacters and threads. Rules are read from a properties file:
+ * collapse.NAME = comma separated patterns, frames are collapsed into a line with the name;
+ * expand.NAME = comma separated patterns, frames are always left expanded;
+ * defaults = false, not to add the built-in rules after the ones of the file.
+ * A pattern is a prefix of class names, or "glob:" or "regex:" followed by a pattern
+ * for the whole class name. Rules are kept in the order of the file, the earlier
+ * one wins for the very same prefix. Spaces in a name and backslashes in a regex
+ * should be escaped, as usual for properties.
+ * USAGE:
+ * collapse.--\ Netty = io.netty.
+ * collapse.--\ Proxies = glob:com.sun.proxy.**, regex:.*\\$\\$EnhancerBySpringCGLIB\\$\\$.*
+ * expand.Own = com.example.
+ * ...
+ * compacter.setRules(RuleSet.load(Paths.get("stacktrace-rules.properties")));
+ */
+public final class RuleSet {
+    private static final String COLLAPSE = "collapse.";
+    private static final String EXPAND = "expand.";
+    private static final String DEFAULTS = "defaults";
+
+    private static final RuleSet DEFAULT_RULES = new RuleSet(Arrays.asList(
+            new ProcessorRule("-- Reflection", new String[] {"java.lang.reflect.", "sun.reflect.", "jdk.internal.reflect."}),
+            new ProcessorRule("-- Tomcat", new String[]{"org.apache.catalina.", "org.apache.coyote.", "org.apache.tomcat."}),
+            new ProcessorRule("-- Websphere", new String[] {"com.ibm.ws.", "com.ibm.websphere."}),
+            new ProcessorRule("-- Spring", "org.springframework."),
+            new ProcessorRule("-- Freemarker", "freemarker."),
+            new ProcessorRule("-- Jackson", "com.fasterxml.jackson."),
+            new ProcessorRule("-- ActiveMQ", "org.apache.activemq."),
+            new ProcessorRule("-- Hibernate", "org.hibernate."),
+            new ProcessorRule("-- DB driver (MS SQL)", "com.microsoft.sqlserver."),
+            new ProcessorRule("-- DB driver (MySQL)", "com.mysql."),
+            new ProcessorRule("-- DB driver (Oracle)", "oracle.jdbc."),
+            new ProcessorRule("-- JUnit", "org.junit."),
+            new ProcessorRule("-- Mockito", "org.mockito."),
+            new ProcessorRule("-- IntelliJ IDEA", "com.intellij.")),
+            Collections.<ProcessorRule>emptyList());
+
+    private final List<ProcessorRule> rulesToCollapse;
+    private final List<ProcessorRule> rulesToLeftExpanded;
+    private final RuleMatcher matcher;
+
+    RuleSet(List<ProcessorRule> rulesToCollapse, List<ProcessorRule> rulesToLeftExpanded) {
+        this.rulesToCollapse = Collections.unmodifiableList(new ArrayList<>(rulesToCollapse));
+        this.rulesToLeftExpanded = Collections.unmodifiableList(new ArrayList<>(rulesToLeftExpanded));
+        this.matcher = new RuleMatcher(this.rulesToCollapse, this.rulesToLeftExpanded);
+    }
+
+    /**
+     * @return rules every compacter starts with.
+     */
+    public static RuleSet defaults() {
+        return DEFAULT_RULES;
+    }
+
+    /**
+     * @throws IOException if the file cannot be read.
+     * @throws IllegalArgumentException if a key is unknown or a pattern is wrong.
+     */
+    public static RuleSet load(Path file) throws IOException {
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return read(reader);
+        }
+    }
+
+    /**
+     * Loads rules from the classpath, by the class loader of this class.
+     * @throws FileNotFoundException if there is no such resource.
+     * @see #load(Path)
+     */
+    public static RuleSet loadResource(String name) throws IOException {
+        ClassLoader classLoader = RuleSet.class.getClassLoader();
+        InputStream in = classLoader == null ? ClassLoader.getSystemResourceAsStream(name)
+                : classLoader.getResourceAsStream(name);
+        if (in == null) {
+            throw new FileNotFoundException("no resource " + name);
+        }
+        try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+            return read(reader);
+        }
+    }
+
+    /**
+     * @see #load(Path)
+     */
+    public static RuleSet read(Reader reader) throws IOException {
+        OrderedProperties properties = new OrderedProperties();
+        properties.load(reader);
+        List<ProcessorRule> rulesToCollapse = new ArrayList<>();
+        List<ProcessorRule> rulesToLeftExpanded = new ArrayList<>();
+        boolean defaults = true;
+        for (Map.Entry<String, String> entry : properties.entries.entrySet()) {
+            String key = entry.getKey();
+            if (key.equals(DEFAULTS)) {
+                defaults = Boolean.parseBoolean(entry.getValue().trim());
+            } else if (key.startsWith(COLLAPSE) && key.length() > COLLAPSE.length()) {
+                rulesToCollapse.add(new ProcessorRule(key.substring(COLLAPSE.length()), split(key, entry.getValue())));
+            } else if (key.startsWith(EXPAND) && key.length() > EXPAND.length()) {
+                rulesToLeftExpanded.add(new ProcessorRule(key.substring(EXPAND.length()), split(key, entry.getValue())));
+            } else {
+                throw new IllegalArgumentException("unknown key '" + key + "', it should be " + COLLAPSE +
+                        "<name>, " + EXPAND + "<name> or " + DEFAULTS);
+            }
+        }
+        if (defaults) {
+            rulesToCollapse.addAll(DEFAULT_RULES.rulesToCollapse);
+            rulesToLeftExpanded.addAll(DEFAULT_RULES.rulesToLeftExpanded);
+        }
+        return new RuleSet(rulesToCollapse, rulesToLeftExpanded);
+    }
+
+    private static String[] split(String key, String value) {
+        List<String> patterns = new ArrayList<>();
+        for (String pattern : value.split(",")) {
+            if (!pattern.trim().isEmpty()) {
+                patterns.add(pattern.trim());
+            }
+        }
+        if (patterns.isEmpty()) {
+            throw new IllegalArgumentException("no patterns for '" + key + "'");
+        }
+        return patterns.toArray(new String[0]);
+    }
+
+    List<ProcessorRule> getRulesToCollapse() {
+        return rulesToCollapse;
+    }
+
+    List<ProcessorRule> getRulesToLeftExpanded() {
+        return rulesToLeftExpanded;
+    }
+
+    RuleMatcher getMatcher() {
+        return matcher;
+    }
+
+    @Override
+    public String toString() {
+        return "RuleSet{" +
+                "rulesToCollapse=" + rulesToCollapse +
+                ", rulesToLeftExpanded=" + rulesToLeftExpanded +
+                '}';
+    }
+
+    /**
+     * Properties keeping the order of the file.
+     */
+    private static final class OrderedProperties extends Properties {
+        private final Map<String, String> entries = new LinkedHashMap<>();
+
+        @Override
+        public synchronized Object put(Object key, Object value) {
+            entries.put((String) key, (String) value);
+            return super.put(key, value);
+        }
+    }
+}
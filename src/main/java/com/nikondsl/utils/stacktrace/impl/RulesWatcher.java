@@ -0,0 +1,32 @@
+package com.nikondsl.utils.stacktrace.impl;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reloads rules files of compacters in the background thread of {@link BackgroundTasks},
+ * so threads compacting exceptions never read a file.
+ */
+final class RulesWatcher {
+    static final long INTERVAL_SECONDS = 10;
+
+    private RulesWatcher() {
+    }
+
+    /**
+     * @return the watch, to be cancelled when another file is watched.
+     */
+    static ScheduledFuture<?> watch(StackTraceCompacter compacter) {
+        return BackgroundTasks.schedule(compacter, RulesWatcher::reload, INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private static void reload(StackTraceCompacter watched) {
+        try {
+            watched.reloadRules();
+        } catch (IOException | RuntimeException e) {
+            //the rules are left as they were till the file is changed again
+            watched.reportError("Rules are not reloaded from " + watched.getRulesFile(), e);
+        }
+    }
+}
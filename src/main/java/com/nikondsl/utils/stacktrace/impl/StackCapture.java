@@ -0,0 +1,61 @@
+package com.nikondsl.utils.stacktrace.impl;
+
+import com.nikondsl.utils.stacktrace.utils.Fingerprint;
+
+import java.util.Arrays;
+
+/**
+ * Frames of the thread calling the compacter, skipping frames of the compacter itself.
+ * This one is for Java 8 and takes them from a new Throwable, once for both the
+ * fingerprint and the printed trace; on Java 9+ the one from META-INF/versions/9 of
+ * the jar walks them lazily with StackWalker instead. Both fingerprint the same fields,
+ * so an exception gets the same id whatever Java it's met on.
+ */
+final class StackCapture {
+
+    /**
+     * Number of top frames used to recognise an exception seen before.
+     */
+    static final int DEPTH = Integer.getInteger("stacktrace.compacter.capture.depth", 32);
+
+    private StackCapture() {
+    }
+
+    /**
+     * @return all frames of the calling thread, to be passed to the other methods.
+     */
+    static StackTraceElement[] snapshot() {
+        return new Throwable().getStackTrace();
+    }
+
+    /**
+     * Adds class, method and line of at most {@link #DEPTH} top frames to the hash.
+     */
+    static long fingerprint(long hash, StackTraceElement[] snapshot) {
+        int first = firstCallerFrame(snapshot);
+        int last = (int) Math.min(snapshot.length, (long) first + DEPTH);
+        for (int i = first; i < last; i++) {
+            hash = Fingerprint.update(hash, snapshot[i].getClassName());
+            hash = Fingerprint.update(hash, snapshot[i].getMethodName());
+            hash = Fingerprint.update(hash, snapshot[i].getLineNumber());
+        }
+        return hash;
+    }
+
+    static StackTraceElement[] frames(StackTraceElement[] snapshot) {
+        return Arrays.copyOfRange(snapshot, firstCallerFrame(snapshot), snapshot.length);
+    }
+
+    static boolean isOwnFrame(String className) {
+        return className.equals(StackCapture.class.getName())
+                || className.equals(StackTraceCompacter.class.getName());
+    }
+
+    private static int firstCallerFrame(StackTraceElement[] frames) {
+        int first = 0;
+        while (first < frames.length && isOwnFrame(frames[first].getClassName())) {
+            first++;
+        }
+        return first;
+    }
+}
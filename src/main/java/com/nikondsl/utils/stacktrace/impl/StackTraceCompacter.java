@@ -1,168 +1,759 @@
 package com.nikondsl.utils.stacktrace.impl;
 
-import com.nikondsl.utils.stacktrace.utils.LimitedFrequency;
+import com.nikondsl.utils.stacktrace.metrics.MetricsSnapshot;
+import com.nikondsl.utils.stacktrace.store.MappedExceptionStore;
+import com.nikondsl.utils.stacktrace.store.StoredException;
+import com.nikondsl.utils.stacktrace.utils.AppendableWriter;
+import com.nikondsl.utils.stacktrace.utils.Appendables;
+import com.nikondsl.utils.stacktrace.utils.BoundedCache;
+import com.nikondsl.utils.stacktrace.utils.ByteBufferAppendable;
+import com.nikondsl.utils.stacktrace.utils.CacheStatistics;
+import com.nikondsl.utils.stacktrace.utils.Fingerprint;
 
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.PrintStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 public class StackTraceCompacter {
 
     private static final int DEFAULT_LENGTH = 512;
-    private static final int CACHE_SIZE = 100;
-    private static final AtomicInteger NUMBER_ONE = new AtomicInteger(1);
+    private static final int CACHE_SIZE = Integer.getInteger("stacktrace.compacter.cache.size", 1000);
+    private static final long CACHE_EXPIRE_MINUTES = Long.getLong("stacktrace.compacter.cache.expire.minutes", 60L);
+    private static final int MAX_CAUSES = 64;
+    private static final int STORM_RATE = Integer.getInteger("stacktrace.compacter.storm.rate", 0);
+    private static final long STORE_FLUSH_MILLIS = Long.getLong("stacktrace.compacter.store.flush.millis", 1000L);
+    private static final int MAX_RETAINED_LENGTH = 64 * 1024;
+    private static final ThreadLocal<FingerprintKey> PROBES = ThreadLocal.withInitial(FingerprintKey::new);
+    private static final ThreadLocal<ReusableBuilder> BUILDERS = ThreadLocal.withInitial(ReusableBuilder::new);
 
-    private volatile static boolean shouldNotCompact = false;
-    private static LimitedFrequency limitedFrequency = LimitedFrequency.createOncePerTenSeconds();
+    private static final long CHECK_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+    private static final AtomicReferenceFieldUpdater<StackTraceCompacter, CompacterState> STATE =
+            AtomicReferenceFieldUpdater.newUpdater(StackTraceCompacter.class, CompacterState.class, "state");
 
-    private final List<ProcessorRule> allRulesToCollapse = Arrays.asList(new ProcessorRule[] {
-            new ProcessorRule("-- Reflection", new String[] {"java.lang.reflect.", "sun.reflect.", "jdk.internal.reflect."}),
-            new ProcessorRule("-- Tomcat", new String[]{"org.apache.catalina.", "org.apache.coyote.", "org.apache.tomcat."}),
-            new ProcessorRule("-- Websphere", new String[] {"com.ibm.ws.", "com.ibm.websphere."}),
-            new ProcessorRule("-- Spring", "org.springframework."),
-            new ProcessorRule("-- Freemarker", "freemarker."),
-            new ProcessorRule("-- Jackson", "com.fasterxml.jackson."),
-            new ProcessorRule("-- ActiveMQ", "org.apache.activemq."),
-            new ProcessorRule("-- Hibernate", "org.hibernate."),
-            new ProcessorRule("-- DB driver (MS SQL)", "com.microsoft.sqlserver."),
-            new ProcessorRule("-- DB driver (MySQL)", "com.mysql."),
-            new ProcessorRule("-- DB driver (Oracle)", "oracle.jdbc."),
-            new ProcessorRule("-- JUnit", "org.junit."),
-            new ProcessorRule("-- Mockito", "org.mockito."),
-            new ProcessorRule("-- IntelliJ IDEA", "com.intellij."),
-    });
+    private final List<ProcessorRule> allRulesToCollapse = new ArrayList<>(RuleSet.defaults().getRulesToCollapse());
 
-    private Throwable currentException;
-    private String compactedBody;
-    private final Stack<StackTraceHolder> stackTraceElements = new Stack<>();
-    private final Set<ProcessorRule> allRulesToLeftExpanded = new LinkedHashSet<>();
-    private final ConcurrentMap<Integer, AtomicInteger> collectedExceptions = new ConcurrentHashMap<>();
+    private final Set<ProcessorRule> allRulesToLeftExpanded =
+            new LinkedHashSet<>(RuleSet.defaults().getRulesToLeftExpanded());
+    private final BoundedCache<FingerprintKey, ExceptionRecord> collectedExceptions;
+    private final MappedExceptionStore store;
+    private final CompacterMetrics metrics;
+    private volatile CompacterState state = new CompacterState(CompactionMode.SYSTEM_PROPERTY,
+            isTurnedOffByProperty(), RuleSet.defaults().getMatcher(), STORM_RATE, System.nanoTime() + CHECK_INTERVAL);
+    private volatile Path rulesFile;
+    private long rulesModified;
+    private ScheduledFuture<?> rulesWatch;
+    //counts are written to the store by one thread at a time
+    private final Object storeFlushLock = new Object();
+    private volatile Throwable lastException;
+    //time in milliseconds the rates of exceptions are measured by, replaced by tests
+    private volatile LongSupplier clock = System::currentTimeMillis;
 
-    private static class StackTraceHolder {
-        private StackTraceElement element;
-        private int counter = 0;
-        private boolean compacted = false;
-        private ProcessorRule ruleWhichMet;
-        private String compactName;
+    /**
+     * How a repeat of an exception seen before is written.
+     */
+    private enum Repeats {
+        //the whole compacted stacktrace, the way init has always written it
+        IN_FULL,
+        //the line with the number of times it's been thrown
+        AS_LINE,
+        //the line, unless it's left out in a storm
+        SAMPLED,
+        //nothing at all
+        LEFT_OUT
+    }
 
-        StackTraceHolder(StackTraceElement element) {
-            this.element = element;
+    /**
+     * StringBuilder reused by every call of {@link #compact(Throwable)} made by the same
+     * thread. A nested call (e.g. from toString of an exception) gets a new one.
+     */
+    private static final class ReusableBuilder {
+        private StringBuilder builder = new StringBuilder(DEFAULT_LENGTH);
+        private boolean inUse;
+
+        StringBuilder acquire() {
+            if (inUse) {
+                return new StringBuilder(DEFAULT_LENGTH);
+            }
+            inUse = true;
+            return builder;
         }
 
-        void incrementCounter() {
-            counter++;
+        void release(StringBuilder released) {
+            if (released != builder) {
+                return;
+            }
+            released.setLength(0);
+            if (released.capacity() > MAX_RETAINED_LENGTH) {
+                builder = new StringBuilder(DEFAULT_LENGTH);
+            }
+            inUse = false;
         }
+    }
+
+    public StackTraceCompacter() {
+        this(CACHE_SIZE, CACHE_EXPIRE_MINUTES, TimeUnit.MINUTES);
+    }
+
+    /**
+     * @param store where exceptions are kept across restarts, may be null.
+     * @see #StackTraceCompacter(int, long, TimeUnit, MappedExceptionStore)
+     */
+    public StackTraceCompacter(MappedExceptionStore store) {
+        this(CACHE_SIZE, CACHE_EXPIRE_MINUTES, TimeUnit.MINUTES, store);
+    }
+
+    public StackTraceCompacter(Throwable currentException) {
+        this();
+        init(currentException);
+    }
+
+    /**
+     * @param cacheSize how many distinct exceptions are remembered in order to be reported
+     *                  as repeated; the least recently thrown ones are forgotten first.
+     * @param expireAfter time after the last throw when an exception is forgotten, 0 means never.
+     * @param timeUnit unit of the expiry time.
+     */
+    public StackTraceCompacter(int cacheSize, long expireAfter, TimeUnit timeUnit) {
+        this(cacheSize, expireAfter, timeUnit, null);
+    }
+
+    /**
+     * @param store where exceptions are kept across restarts: an exception found there
+     *              is reported as repeated at once, and counts are written back to it
+     *              in the background, see {@link #flushStore()}. May be null.
+     * @see #StackTraceCompacter(int, long, TimeUnit)
+     */
+    public StackTraceCompacter(int cacheSize, long expireAfter, TimeUnit timeUnit, MappedExceptionStore store) {
+        collectedExceptions = new BoundedCache<>(cacheSize, expireAfter, timeUnit);
+        metrics = new CompacterMetrics(collectedExceptions, this);
+        this.store = store;
+        if (store != null) {
+            BackgroundTasks.schedule(this, StackTraceCompacter::flushOpenStore, STORE_FLUSH_MILLIS,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Compacts the exception and counts it. Every call returns the whole compacted
+     * stacktrace, the same exception thrown again included. Use {@link #compact(Throwable)}
+     * to have repeats reported by a single line.
+     * @param throwable exception to be compacted.
+     * @return compacted stacktrace, with no header.
+     */
+    public String init(Throwable throwable) {
+        return compactToString(throwable, Repeats.IN_FULL);
+    }
+
+    /**
+     * Compacts the exception and remembers it, so the same exception thrown again
+     * is reported by a single line only.
+     * @param throwable exception to be compacted.
+     * @return compacted stacktrace with a header carrying its id, or just the header
+     * line with the number of times it's been thrown if the exception is seen before.
+     */
+    public String compact(Throwable throwable) {
+        return compactToString(throwable, Repeats.AS_LINE);
+    }
+
+    /**
+     * The same as {@link #compact(Throwable)}, but writes the result straight into the given
+     * Appendable (for instance a Writer or the reusable StringBuilder of a log encoder)
+     * with no intermediate String.
+     * @param throwable exception to be compacted.
+     * @param out where to write compacted stacktrace to.
+     * @throws IOException if the Appendable fails.
+     */
+    public void compact(Throwable throwable, Appendable out) throws IOException {
+        write(throwable, out, Repeats.AS_LINE);
+    }
+
+    /**
+     * The same as {@link #compact(Throwable, Appendable)} for StringBuilder, which cannot fail.
+     * An exception seen before is written with no allocation at all.
+     */
+    public void compact(Throwable throwable, StringBuilder out) {
+        try {
+            write(throwable, out, Repeats.AS_LINE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * The same as {@link #compact(Throwable, Appendable)}, but encodes the result as UTF-8
+     * straight into the buffer.
+     * @throws BufferOverflowException if there is not enough space left in the buffer; the
+     * position of the buffer is then left where it was, the exception is counted all the same.
+     */
+    public void compact(Throwable throwable, ByteBuffer out) {
+        int position = out.position();
+        try {
+            ByteBufferAppendable appendable = new ByteBufferAppendable(out);
+            write(throwable, appendable, Repeats.AS_LINE);
+            appendable.flush();
+        } catch (BufferOverflowException e) {
+            //no part of the trace is left in the buffer
+            out.position(position);
+            throw e;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * The same as {@link #compact(Throwable)}, but writes the result in the binary form of
+     * {@link TraceEncoder}, for shipping or storing many stacktraces.
+     * @throws IOException if the stream of the encoder fails.
+     */
+    public void compact(Throwable throwable, TraceEncoder out) throws IOException {
+        long started = System.nanoTime();
+        try {
+            encode(throwable, out);
+        } finally {
+            metrics.getInitHistogram().record(System.nanoTime() - started);
+        }
+    }
+
+    private void encode(Throwable throwable, TraceEncoder out) throws IOException {
+        CompacterState state = state();
+        lastException = throwable;
+        if (state.turnedOff) {
+            StringBuilder text = new StringBuilder(DEFAULT_LENGTH);
+            printFull(throwable, text);
+            out.writeText(text);
+            return;
+        }
+        StackTraceElement[] stackTrace = throwable == null ? null : throwable.getStackTrace();
+        if (stackTrace == null || stackTrace.length == 0) {
+            out.writeText(describeMissing(throwable, stackTrace));
+            return;
+        }
+        long id = fingerprint(throwable, stackTrace);
+        ExceptionRecord record = recordOf(id, throwable);
+        int counter = count(record);
+        metrics.compacted(counter != 1);
+        if (counter != 1) {
+            out.writeRepeated(id, counter, throwable);
+            return;
+        }
+        RuleMatcher matcher = state.matcher;
+        out.writeTrace(id, TraceRenderer.collect(throwable, stackTrace), matcher);
+        if (store != null) {
+            //the binary form has no text to be reused
+            StringBuilder body = new StringBuilder(DEFAULT_LENGTH);
+            TraceRenderer.render(throwable, stackTrace, matcher, null, body);
+            remember(id, body);
+        }
+    }
+
+    /**
+     * Compacts the exception only when it's thrown for the first time; repeats are
+     * just counted, so they can be reported later by {@link #getSeenExceptions()}.
+     * @param throwable exception to be compacted.
+     * @return compacted stacktrace with a header carrying its id, or null if the
+     * exception is seen before.
+     */
+    public String compactIfNew(Throwable throwable) {
+        return compactToString(throwable, Repeats.LEFT_OUT);
+    }
 
-        int getCounter() {
-            return counter;
+    /**
+     * The same as {@link #compact(Throwable)}, but a repeat of an exception thrown more
+     * often than the storm rate may be left out, see {@link #setStormRate(double)}.
+     * @param throwable exception to be compacted.
+     * @return what compact returns, or null for a repeat left out in a storm.
+     */
+    public String compactSampled(Throwable throwable) {
+        return compactToString(throwable, Repeats.SAMPLED);
+    }
+
+    /**
+     * The same as {@link #compactSampled(Throwable)}, writing into the given StringBuilder.
+     * @return false if nothing is written, for a repeat left out in a storm.
+     */
+    public boolean compactSampled(Throwable throwable, StringBuilder out) {
+        try {
+            return write(throwable, out, Repeats.SAMPLED);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
+    }
 
-        void setCompactName(String compactName) {
-            this.compactName = compactName;
-            compacted = true;
+    /**
+     * Compacts the exception taking frames from the stack of the calling thread rather
+     * than from the exception. It's meant for own throw sites, where the exception can
+     * be created with no stack trace filled in at all:
+     * throw new ServiceException(message, null, false, false) with the protected
+     * constructor of Throwable, then log.warn(compacter.capture(ex)) in the same method.
+     * Only the top frames ("stacktrace.compacter.capture.depth", 32 by default) are
+     * used to recognise an exception seen before. On Java 9+ frames are walked lazily
+     * by StackWalker, so a repeated exception costs no more than its top frames.
+     * When the compacter is turned off the exception is printed as it is.
+     * @param throwable exception to be compacted.
+     * @return the same as {@link #compact(Throwable)} does.
+     */
+    public String capture(Throwable throwable) {
+        ReusableBuilder reusable = BUILDERS.get();
+        StringBuilder result = reusable.acquire();
+        try {
+            capture(throwable, result);
+            return result.toString();
+        } finally {
+            reusable.release(result);
         }
+    }
 
-        boolean isCompacted() {
-            return compacted;
+    /**
+     * The same as {@link #capture(Throwable)}, writing into the given StringBuilder.
+     */
+    public void capture(Throwable throwable, StringBuilder out) {
+        long started = System.nanoTime();
+        try {
+            CompacterState state = state();
+            if (throwable == null) {
+                out.append(describeMissing(null, null));
+                return;
+            }
+            if (state.turnedOff) {
+                printFull(throwable, out);
+                return;
+            }
+            long hash = Fingerprint.update(Fingerprint.START, throwable.getClass().getName());
+            StackTraceElement[] snapshot = StackCapture.snapshot();
+            hash = StackCapture.fingerprint(hash, snapshot);
+            Throwable cause = throwable.getCause();
+            if (cause != null && cause != throwable) {
+                long causeId = fingerprint(cause, cause.getStackTrace());
+                hash = Fingerprint.update(hash, (int) causeId);
+                hash = Fingerprint.update(hash, (int) (causeId >>> 32));
+            }
+            long id = Fingerprint.finish(hash);
+            ExceptionRecord record = recordOf(id, throwable);
+            int counter = count(record);
+            metrics.compacted(counter != 1);
+            StackTraceElement[] stackTrace = counter == 1 ? StackCapture.frames(snapshot) : null;
+            RuleMatcher matcher = state.matcher;
+            int start = out.length();
+            if (counter == 1) {
+                writeFirst(throwable, stackTrace, matcher, id, true, out);
+                record.setPrintedLength(TraceRenderer.printedLength(throwable, stackTrace));
+            } else {
+                write(throwable, stackTrace, matcher, metrics, id, counter, out);
+            }
+            metrics.measured(record.getPrintedLength(), out.length() - start);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            metrics.getInitHistogram().record(System.nanoTime() - started);
         }
+    }
 
-        @Override
-        public String toString() {
-            if (!compacted) {
-                return element.toString();
+    private String compactToString(Throwable throwable, Repeats repeats) {
+        ReusableBuilder reusable = BUILDERS.get();
+        StringBuilder result = reusable.acquire();
+        try {
+            if (!write(throwable, result, repeats)) {
+                return null;
             }
-            if (counter > 1) {
-                return "\t" + compactName + "\t<" + counter + " lines>";
+            if (throwable == null && result.length() == 0) {
+                //turned off, nothing to print
+                return null;
             }
-            return "\t" + compactName;
+            return result.toString();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            reusable.release(result);
         }
     }
 
-    public StackTraceCompacter() {
+    private boolean write(Throwable throwable, Appendable out, Repeats repeats) throws IOException {
+        long started = System.nanoTime();
+        try {
+            return compactTo(throwable, out, repeats);
+        } finally {
+            metrics.getInitHistogram().record(System.nanoTime() - started);
+        }
     }
 
-    public StackTraceCompacter(Throwable currentException) {
-        init(currentException);
+    /**
+     * Compacts the exception using only local state, so it can be called by any
+     * number of threads at once without any locking. The fingerprint is computed
+     * first, so an exception seen before is only counted and, unless it's written in
+     * full, described by one line.
+     * @return false if the exception is seen before and this repeat is not written.
+     */
+    private boolean compactTo(Throwable throwable, Appendable out, Repeats repeats) throws IOException {
+        CompacterState state = state();
+        lastException = throwable;
+        if (state.turnedOff) {
+            printFull(throwable, out);
+            return true;
+        }
+        StackTraceElement[] stackTrace = throwable == null ? null : throwable.getStackTrace();
+        if (stackTrace == null || stackTrace.length == 0) {
+            out.append(describeMissing(throwable, stackTrace));
+            return true;
+        }
+        long id = fingerprint(throwable, stackTrace);
+        ExceptionRecord record = recordOf(id, throwable);
+        int counter = count(record);
+        metrics.compacted(counter != 1);
+        if (counter != 1 && (repeats == Repeats.LEFT_OUT ||
+                (repeats == Repeats.SAMPLED && !isWritten(record, counter, state)))) {
+            metrics.measured(record.getPrintedLength(), 0);
+            return false;
+        }
+        RuleMatcher matcher = state.matcher;
+        //only the length of a StringBuilder can be known
+        int start = out instanceof StringBuilder ? ((StringBuilder) out).length() : -1;
+        if (counter == 1) {
+            writeFirst(throwable, stackTrace, matcher, id, repeats != Repeats.IN_FULL, out);
+            record.setPrintedLength(TraceRenderer.printedLength(throwable, stackTrace));
+        } else if (repeats == Repeats.IN_FULL) {
+            TraceRenderer.render(throwable, stackTrace, matcher, metrics, out);
+        } else {
+            write(throwable, stackTrace, matcher, metrics, id, counter, out);
+        }
+        if (start >= 0) {
+            metrics.measured(record.getPrintedLength(), ((StringBuilder) out).length() - start);
+        }
+        return true;
     }
 
-    public String init(Throwable throwable) {
-        this.currentException = throwable;
-        if (limitedFrequency.isTimePassed()) {
-            //check if it's turned of
-            if (System.getProperty("stacktrace.compacter.off") != null) {
-                shouldNotCompact = true;
-                collectedExceptions.clear();
-            } else {
-                shouldNotCompact = false;
+    /**
+     * @return the state to use for the whole call. It costs a single volatile read,
+     * except for one call in ten seconds, which checks the system property.
+     */
+    private CompacterState state() {
+        CompacterState current = state;
+        if (System.nanoTime() - current.nextCheck < 0) {
+            return current;
+        }
+        //only the thread which has moved the time of the next check does the check
+        if (!STATE.compareAndSet(this, current, current.withNextCheck(System.nanoTime() + CHECK_INTERVAL))) {
+            return state;
+        }
+        if (current.mode == CompactionMode.SYSTEM_PROPERTY) {
+            applyMode(CompactionMode.SYSTEM_PROPERTY);
+        }
+        return state;
+    }
+
+    private static boolean isTurnedOffByProperty() {
+        return System.getProperty("stacktrace.compacter.off") != null;
+    }
+
+    /**
+     * Switches the compacter on or off at runtime, for instance from JMX. Threads
+     * compacting at the moment finish the way they have started. Exceptions seen
+     * before are forgotten when the compacter is turned off.
+     * @param mode SYSTEM_PROPERTY by default.
+     */
+    public void setMode(CompactionMode mode) {
+        Objects.requireNonNull(mode);
+        applyMode(mode);
+    }
+
+    public CompactionMode getMode() {
+        return state.mode;
+    }
+
+    /**
+     * @return true if exceptions are printed as they are at the moment.
+     */
+    public boolean isTurnedOff() {
+        return state.turnedOff;
+    }
+
+    /**
+     * Makes repeats of an exception thrown more often than the given rate written
+     * sparsely by {@link #compactSampled(Throwable)}: the first repeat, then the 10th, the
+     * 100th and so on. The others are still counted, but nothing is written for them;
+     * init, compact and the other methods write every repeat. The exception is written on every
+     * repeat again once its rate falls under half of the given one. The rate of every
+     * exception is averaged over the last few seconds, lock free.
+     * @param perSecond throws per second of a single exception, 0 turns it off
+     * ("stacktrace.compacter.storm.rate", 0 by default).
+     */
+    public void setStormRate(double perSecond) {
+        if (perSecond < 0 || Double.isNaN(perSecond)) {
+            throw new IllegalArgumentException("rate should not be negative, but was " + perSecond);
+        }
+        CompacterState current;
+        do {
+            current = state;
+        } while (!STATE.compareAndSet(this, current, current.withStormRate(perSecond)));
+    }
+
+    public double getStormRate() {
+        return state.stormRate;
+    }
+
+    void setClock(LongSupplier clock) {
+        this.clock = Objects.requireNonNull(clock);
+    }
+
+    private void applyMode(CompactionMode mode) {
+        boolean turnedOff = mode == CompactionMode.OFF ||
+                (mode == CompactionMode.SYSTEM_PROPERTY && isTurnedOffByProperty());
+        CompacterState current;
+        do {
+            current = state;
+            if (current.mode == mode && current.turnedOff == turnedOff) {
+                return;
             }
-            synchronized (this) {
-                stackTraceElements.clear();
+        } while (!STATE.compareAndSet(this, current, current.withMode(mode, turnedOff)));
+        if (turnedOff && !current.turnedOff) {
+            collectedExceptions.clear();
+        }
+    }
+
+    private void setMatcher(RuleMatcher matcher) {
+        CompacterState current;
+        do {
+            current = state;
+        } while (!STATE.compareAndSet(this, current, current.withMatcher(matcher)));
+    }
+
+    private ExceptionRecord recordOf(long id, Throwable throwable) {
+        ExceptionRecord record = collectedExceptions.get(PROBES.get().set(id));
+        if (record == null) {
+            ExceptionRecord created = restore(id, throwable);
+            record = collectedExceptions.putIfAbsent(new FingerprintKey(id), created);
+            if (record == null) {
+                record = created;
             }
         }
-        if (shouldNotCompact) {
-            return generateString(false);
-        }
-        synchronized (this) {
-            stackTraceElements.clear();
-            for (StackTraceElement element : throwable.getStackTrace()) {
-                StackTraceHolder last = stackTraceElements.isEmpty() ? null : stackTraceElements.peek();
-                String canonicalName = element.toString();
-                boolean noRuleMet = true;
-                for (ProcessorRule rule : allRulesToCollapse) {
-                    if (!rule.processCurrentLine(canonicalName)) {
-                        continue;
-                    }
-                    if (allRulesToLeftExpanded.contains(rule)) {
-                        continue;
-                    }
-                    if (last != null &&
-                        last.isCompacted() &&
-                        last.ruleWhichMet == rule) {
-                        //already compacted
-                        last.incrementCounter();
-                        noRuleMet = false;
-                        break;
-                    }
-                    //put first compacted
-                    stackTraceElements.push(new StackTraceHolder(element));
-                    last = stackTraceElements.peek();
-                    last.ruleWhichMet = rule;
-                    last.setCompactName(rule.compactedName);
-                    last.incrementCounter();
-                    noRuleMet = false;
-                    break;
-                }
-                if (noRuleMet) {
-                    stackTraceElements.push(new StackTraceHolder(element));
+        return record;
+    }
+
+    /**
+     * Counts one more throw in memory only, the store gets it from {@link #flushStore()}.
+     */
+    private int count(ExceptionRecord record) {
+        return record.increment();
+    }
+
+    /**
+     * @return false if the exception is thrown so often now that this repeat is left out.
+     */
+    private boolean isWritten(ExceptionRecord record, int counter, CompacterState state) {
+        if (counter == 1 || state.stormRate <= 0 || record.isWritten(counter, clock.getAsLong(), state.stormRate)) {
+            return true;
+        }
+        metrics.sampled();
+        return false;
+    }
+
+    private ExceptionRecord restore(long id, Throwable throwable) {
+        StoredException stored = null;
+        if (store != null) {
+            try {
+                stored = store.get(id);
+            } catch (IllegalStateException e) {
+                reportError("Exception is not restored from " + store.getFile(), e);
+            }
+        }
+        if (stored == null) {
+            return new ExceptionRecord(id, throwable);
+        }
+        return new ExceptionRecord(id, throwable, stored.getFirstSeen(),
+                (int) Math.min(stored.getCount(), Integer.MAX_VALUE - 1));
+    }
+
+    /**
+     * Writes an exception thrown for the first time, with or without the header, and
+     * keeps it in the store. The trace is rendered once for both: straight into the
+     * StringBuilder of the caller, or into a new one copied to any other Appendable.
+     */
+    private void writeFirst(Throwable throwable, StackTraceElement[] stackTrace, RuleMatcher matcher, long id,
+                            boolean header, Appendable out) throws IOException {
+        if (header) {
+            appendHeader(id, out);
+        }
+        StringBuilder body = store == null || out instanceof StringBuilder ? null : new StringBuilder(DEFAULT_LENGTH);
+        Appendable target = body == null ? out : body;
+        int start = target instanceof StringBuilder ? ((StringBuilder) target).length() : 0;
+        TraceRenderer.render(throwable, stackTrace, matcher, metrics, target);
+        if (store != null) {
+            StringBuilder rendered = (StringBuilder) target;
+            remember(id, rendered.subSequence(start, rendered.length()));
+        }
+        if (body != null) {
+            out.append(body);
+        }
+        if (header) {
+            out.append('\n');
+        }
+    }
+
+    /**
+     * Keeps an exception thrown for the first time in the store, together with its body.
+     * It's kept with no count, {@link #flushStore()} adds this throw like any other.
+     */
+    private void remember(long id, CharSequence body) {
+        try {
+            store.put(id, 0, System.currentTimeMillis(), body.toString());
+        } catch (IllegalStateException e) {
+            reportError("Exception is not stored in " + store.getFile(), e);
+        }
+    }
+
+    /**
+     * Computes an id of the exception straight from its structure: class of the
+     * exception, class, method and line of every frame, and the same for all causes.
+     * The message is not taken into account, so the same failure with different
+     * details in the message is counted as the same exception.
+     */
+    static long fingerprint(Throwable throwable, StackTraceElement[] stackTrace) {
+        long hash = Fingerprint.START;
+        Throwable current = throwable;
+        for (int depth = 0; current != null && depth < MAX_CAUSES; depth++) {
+            StackTraceElement[] frames = depth == 0 ? stackTrace : current.getStackTrace();
+            hash = Fingerprint.update(hash, TraceRenderer.classNameOf(current));
+            hash = Fingerprint.update(hash, frames == null ? -1 : frames.length);
+            if (frames != null) {
+                for (StackTraceElement frame : frames) {
+                    hash = Fingerprint.update(hash, frame.getClassName());
+                    hash = Fingerprint.update(hash, frame.getMethodName());
+                    hash = Fingerprint.update(hash, frame.getLineNumber());
                 }
             }
+            if (current == current.getCause()) {
+                break;
+            }
+            current = current.getCause();
         }
-        compactedBody = generateString(false);
-        AtomicInteger counterOfExceptionNew = new AtomicInteger(1);
-        AtomicInteger counterOfExceptionOld = collectedExceptions.putIfAbsent(compactedBody.hashCode(),
-                counterOfExceptionNew);
-        if (counterOfExceptionOld != null) {
-            counterOfExceptionOld.incrementAndGet();
+        return Fingerprint.finish(hash);
+    }
+
+    /**
+     * Replaces all rules at once. Threads compacting at the moment go on with the
+     * rules they have started with, no one waits for the others.
+     * @param rules for instance loaded by {@link RuleSet#load(java.nio.file.Path)}.
+     */
+    public synchronized void setRules(RuleSet rules) {
+        Objects.requireNonNull(rules);
+        allRulesToCollapse.clear();
+        allRulesToCollapse.addAll(rules.getRulesToCollapse());
+        allRulesToLeftExpanded.clear();
+        allRulesToLeftExpanded.addAll(rules.getRulesToLeftExpanded());
+        setMatcher(rules.getMatcher());
+    }
+
+    /**
+     * Takes rules from the file, and takes them again once per ten seconds if the
+     * file is changed. The file is checked by a background thread, never by threads
+     * compacting exceptions. A file which cannot be loaded leaves the rules as they
+     * were, the failure is reported by {@link #getMetrics()}.
+     * @throws IOException if the file cannot be read now.
+     * @throws IllegalArgumentException if the file has wrong rules now.
+     */
+    public synchronized void watchRules(Path file) throws IOException {
+        long modified = Files.getLastModifiedTime(file).toMillis();
+        setRules(RuleSet.load(file));
+        rulesModified = modified;
+        rulesFile = file;
+        if (rulesWatch == null) {
+            rulesWatch = RulesWatcher.watch(this);
         }
-        //remove everything collected, 100 is enough
-        if (collectedExceptions.size() > CACHE_SIZE) {
-            collectedExceptions.clear();
-            collectedExceptions.put(compactedBody.hashCode(), counterOfExceptionNew);
+    }
+
+    /**
+     * Stops checking the file given to {@link #watchRules(Path)}, the rules stay as they are.
+     */
+    public synchronized void unwatchRules() {
+        rulesFile = null;
+        if (rulesWatch != null) {
+            rulesWatch.cancel(false);
+            rulesWatch = null;
         }
-        return compactedBody;
+    }
+
+    /**
+     * Writes counts of exceptions thrown since the previous flush to the store. It's done
+     * in the background ("stacktrace.compacter.store.flush.millis", every second by default),
+     * so throwing threads never wait for the store; call it before the store is closed.
+     * Counts of an exception forgotten by the compacter between two flushes are lost.
+     */
+    public void flushStore() {
+        if (store == null) {
+            return;
+        }
+        synchronized (storeFlushLock) {
+            try {
+                collectedExceptions.forEach((key, record) -> {
+                    int count = record.getCount();
+                    //added, not set, as other processes may count the same exception in the store
+                    if (count != record.getStoredCount() &&
+                            store.add(record.getId(), count - record.getStoredCount(), record.getLastSeen())) {
+                        record.setStoredCount(count);
+                    }
+                });
+            } catch (IllegalStateException e) {
+                reportError("Counts are not written to " + store.getFile(), e);
+            }
+        }
+    }
+
+    private static void flushOpenStore(StackTraceCompacter compacter) {
+        if (compacter.store.isClosed()) {
+            throw new IllegalStateException(compacter.store.getFile() + " is closed, no need to flush it");
+        }
+        compacter.flushStore();
+    }
+
+    Path getRulesFile() {
+        return rulesFile;
+    }
+
+    /**
+     * Takes rules from the file given to {@link #watchRules(Path)} right now, if
+     * the file is changed since the last time.
+     * @return true if rules are reloaded.
+     */
+    public synchronized boolean reloadRules() throws IOException {
+        Path file = rulesFile;
+        if (file == null) {
+            return false;
+        }
+        long modified = Files.getLastModifiedTime(file).toMillis();
+        if (modified == rulesModified) {
+            return false;
+        }
+        //a broken file is not tried again till it's changed
+        rulesModified = modified;
+        setRules(RuleSet.load(file));
+        return true;
     }
 
     /**
      * Allows to add user defined rule for compacting rows.
      * @param compactedName name of rule - will be visible in stacktrace.
-     * @param rule in fact array of texts, you do not want to see expanded in stacktrace.
+     * @param rule in fact array of texts, you do not want to see expanded in stacktrace;
+     *             class name prefixes, or "glob:" and "regex:" patterns, see {@link RuleSet}.
+     * @throws java.util.regex.PatternSyntaxException if a regex is wrong; the rules stay as they were.
      */
     public synchronized void addRuleToCollapse(String compactedName, String[] rule) {
-        allRulesToCollapse.add(new ProcessorRule(compactedName, rule));
+        List<ProcessorRule> rulesToCollapse = new ArrayList<>(allRulesToCollapse);
+        rulesToCollapse.add(new ProcessorRule(compactedName, rule));
+        //a rule which does not compile is not kept, so the next change does not fail on it
+        RuleMatcher matcher = new RuleMatcher(rulesToCollapse, allRulesToLeftExpanded);
+        allRulesToCollapse.add(rulesToCollapse.get(rulesToCollapse.size() - 1));
+        setMatcher(matcher);
     }
 
     /**
@@ -172,129 +763,157 @@ public class StackTraceCompacter {
      * @param rule in fact array of texts, you want to see expanded in stacktracea.
      */
     public synchronized void addRuleToBeLeftExpanded(String ruleName, String[] rule) {
-        allRulesToLeftExpanded.add(new ProcessorRule(ruleName, rule));
+        Set<ProcessorRule> rulesToLeftExpanded = new LinkedHashSet<>(allRulesToLeftExpanded);
+        ProcessorRule added = new ProcessorRule(ruleName, rule);
+        rulesToLeftExpanded.add(added);
+        RuleMatcher matcher = new RuleMatcher(allRulesToCollapse, rulesToLeftExpanded);
+        allRulesToLeftExpanded.add(added);
+        setMatcher(matcher);
     }
 
-    public synchronized List<ProcessorRule> getAllRules() {
-        return Collections.unmodifiableList(new ArrayList<>(allRulesToLeftExpanded));
+    /**
+     * Counts a failure which the compacter has survived, for instance a rules file which
+     * cannot be loaded, and keeps it as the last error of {@link #getMetrics()}. Nothing
+     * is printed: the compacter is usually part of logging itself.
+     * @param message what has failed.
+     * @param cause why, may be null.
+     */
+    public void reportError(String message, Throwable cause) {
+        metrics.error(cause == null ? message : message + ": " + cause);
     }
 
-    private static class ProcessorRule {
-        private final Set<String> rules;
-        private final String compactedName;
-
-        ProcessorRule(String compactedName, String rule) {
-            rules = new HashSet<>();
-            rules.add(rule);
-            this.compactedName = compactedName;
-        }
+    /**
+     * @return statistics of the cache of exceptions seen before.
+     */
+    public CacheStatistics getCacheStatistics() {
+        return collectedExceptions.getStatistics();
+    }
 
-        ProcessorRule(String compactedName, String[] newRules) {
-            rules = new HashSet<>();
-            rules.addAll(Arrays.asList(newRules));
-            this.compactedName = compactedName;
-        }
+    /**
+     * @return what the compacter has done since it was created: how many exceptions are
+     * compacted and how many are repeats, how much shorter stacktraces get, how many
+     * frames every rule collapses, and how long it takes.
+     */
+    public MetricsSnapshot getMetrics() {
+        return metrics.snapshot();
+    }
 
-        boolean processCurrentLine(String className) {
-            return rules.stream().anyMatch(className::contains);
-        }
+    /**
+     * Makes the metrics of the compacter visible to JMX clients, for instance JConsole,
+     * as "com.nikondsl.utils.stacktrace:type=StackTraceCompacter,name=" and the given name.
+     * @param name distinguishes compacters of the same JVM.
+     * @return name the MBean is registered with, to unregister it when not needed.
+     * @throws JMException if there is a registered MBean with the same name already.
+     */
+    public ObjectName registerMBean(String name) throws JMException {
+        ObjectName objectName = new ObjectName("com.nikondsl.utils.stacktrace:type=StackTraceCompacter,name=" +
+                ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, objectName);
+        return objectName;
+    }
 
-        @Override
-        public String toString() {
-            return "ProcessorRule{" +
-                    "" + compactedName +
-                    '}';
-        }
+    /**
+     * @return what is known about every exception remembered at the moment.
+     */
+    public List<ExceptionSummary> getSeenExceptions() {
+        List<ExceptionSummary> result = new ArrayList<>(collectedExceptions.size());
+        collectedExceptions.forEach((id, record) -> result.add(record.toSummary()));
+        return result;
+    }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            ProcessorRule that = (ProcessorRule) o;
-            return Objects.equals(rules, that.rules) &&
-                    Objects.equals(compactedName, that.compactedName);
-        }
+    /**
+     * @return rules to collapse followed by rules to be left expanded.
+     */
+    public synchronized List<ProcessorRule> getAllRules() {
+        List<ProcessorRule> result = new ArrayList<>(allRulesToCollapse.size() + allRulesToLeftExpanded.size());
+        result.addAll(allRulesToCollapse);
+        result.addAll(allRulesToLeftExpanded);
+        return Collections.unmodifiableList(result);
+    }
 
-        @Override
-        public int hashCode() {
-            return Objects.hash(rules, compactedName);
+    String generateString(boolean generateHeader) {
+        long started = System.nanoTime();
+        try {
+            return generate(generateHeader);
+        } finally {
+            metrics.getGenerateStringHistogram().record(System.nanoTime() - started);
         }
     }
 
-    String generateString(boolean generateHeader) {
-        if (shouldNotCompact) {
-            if (currentException == null) {
-                return null;
-            }
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            PrintStream stream = new PrintStream(new BufferedOutputStream(out));
-            currentException.printStackTrace(stream);
-            currentException = null;
-            return out.toString();
-        }
-        synchronized (this) {
-            if (currentException == null) {
-                return "No exception provided";
-            }
-            if (currentException.getStackTrace() == null) {
-                return "No stacktrace provided";
-            }
-            if (currentException.getStackTrace().length == 0) {
-                return "No any stacktrace element provided";
-            }
-            StringBuilder result = new StringBuilder(DEFAULT_LENGTH);
-            if (generateHeader) {
-                int counter = collectedExceptions.getOrDefault(compactedBody.hashCode(), NUMBER_ONE).get();
-                if (counter != 1) {
-                    result.append("Exception ('" + compactedBody.hashCode() +
-                            "') has been thrown #" + counter + " times: ");
-                    result.append(currentException.toString()).append("\n");
-                    return result.toString();
+    private String generate(boolean generateHeader) {
+        Throwable throwable = lastException;
+        StringBuilder result = new StringBuilder(DEFAULT_LENGTH);
+        CompacterState state = this.state;
+        try {
+            if (state.turnedOff) {
+                if (throwable == null) {
+                    return null;
                 }
-                result.append("Here's a compacted exception ('" + compactedBody.hashCode() + "')");
-                result.append("\n");
-                result.append(compactedBody).append("\n");
+                printFull(throwable, result);
                 return result.toString();
             }
-            result.append(currentException.toString());
-            int lineLength = 0;
-            boolean compactedLine = false;
-            for (StackTraceHolder element : stackTraceElements) {
-                if (!element.isCompacted()) {
-                    result.append("\n\tat ").append(element);
-                    continue;
-                }
-                String append = element.toString();
-                if (lineLength == 0) {
-                    result.append("\n\tat ");
-                    lineLength += 4;
-                    if (!compactedLine) {
-                        result.append(append);
-                        lineLength += append.length();
-                    }
-                }
-                if (compactedLine) {
-                    result.append(append);
-                    lineLength += append.length();
-                }
-                compactedLine = element.isCompacted();
-                if (lineLength > 130) {
-                    compactedLine = false;
-                    lineLength = 0;
-                }
+            StackTraceElement[] stackTrace = throwable == null ? null : throwable.getStackTrace();
+            if (stackTrace == null || stackTrace.length == 0) {
+                return describeMissing(throwable, stackTrace);
             }
-            Throwable cause = currentException.getCause();
-            while (cause != null) {
-                StackTraceCompacter innerShortener = new StackTraceCompacter(cause);
-                result.append("Caused by: \n");
-                String inner = innerShortener.generateString(true);
-                result.append(inner);
-                if (cause == cause.getCause()) {
-                    break;
-                }
-                cause = cause.getCause();
+            RuleMatcher matcher = state.matcher;
+            if (!generateHeader) {
+                TraceRenderer.render(throwable, stackTrace, matcher, null, result);
+                return result.toString();
             }
-            return result.toString();
+            long id = fingerprint(throwable, stackTrace);
+            ExceptionRecord seen = collectedExceptions.peek(PROBES.get().set(id));
+            write(throwable, stackTrace, matcher, null, id, seen == null ? 1 : seen.getCount(), result);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return result.toString();
+    }
+
+    private static void write(Throwable throwable, StackTraceElement[] stackTrace, RuleMatcher matcher,
+                              CompacterMetrics metrics, long id, int counter, Appendable out) throws IOException {
+        if (counter != 1) {
+            appendRepeatedHeader(id, counter, out);
+            TraceRenderer.describe(throwable, out);
+            out.append('\n');
+            return;
+        }
+        appendHeader(id, out);
+        TraceRenderer.render(throwable, stackTrace, matcher, metrics, out);
+        out.append('\n');
+    }
+
+    static void appendHeader(long id, Appendable out) throws IOException {
+        out.append("Here's a compacted exception ('");
+        Appendables.appendUnsigned(id, out);
+        out.append("')");
+        out.append('\n');
+    }
+
+    static void appendRepeatedHeader(long id, int counter, Appendable out) throws IOException {
+        out.append("Exception ('");
+        Appendables.appendUnsigned(id, out);
+        out.append("') has been thrown #");
+        Appendables.appendNumber(counter, out);
+        out.append(" times: ");
+    }
+
+    private static void printFull(Throwable throwable, Appendable out) {
+        if (throwable == null) {
+            return;
+        }
+        PrintWriter writer = new PrintWriter(new AppendableWriter(out));
+        throwable.printStackTrace(writer);
+        writer.flush();
+    }
+
+    private static String describeMissing(Throwable throwable, StackTraceElement[] stackTrace) {
+        if (throwable == null) {
+            return "No exception provided";
+        }
+        if (stackTrace == null) {
+            return "No stacktrace provided";
         }
+        return "No any stacktrace element provided";
     }
 }
@@ -0,0 +1,314 @@
+package com.nikondsl.utils.stacktrace.impl;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Restores the text of compacted stacktraces written by {@link TraceEncoder}, exactly
+ * as {@link StackTraceCompacter#compact(Throwable)} would have returned it. Records have
+ * to be read from the very beginning of the stream, in order. Not thread safe.
+ * USAGE:
+ * try (TraceDecoder decoder = new TraceDecoder(new FileInputStream("errors.bin"))) {
+ *     for (String trace = decoder.next(); trace != null; trace = decoder.next()) {
+ *         System.out.print(trace);
+ *     }
+ * }
+ */
+public final class TraceDecoder implements Closeable {
+    //far more than a JVM records (1024 frames by default), so only a broken stream has more
+    private static final int MAX_FRAMES = 1 << 20;
+    private static final int MAX_DEPTH = 1 << 10;
+    //sizes are read from the stream, so arrays grow with what is actually read, not with them
+    private static final int CHUNK = 8192;
+
+    private final InputStream in;
+    private final List<String> dictionary = new ArrayList<>();
+    private final Map<Long, Segment> segments = new HashMap<>();
+
+    private static final class Segment {
+        //every entry is either a frame as text or a collapsed rule
+        private String[] frames;
+        private String[] rules;
+        private int[] counters;
+        private int length;
+        private int inCommon;
+
+        Segment(int capacity) {
+            frames = new String[capacity];
+            rules = new String[capacity];
+            counters = new int[capacity];
+        }
+
+        void add(String frame, String rule, int counter) {
+            if (length == frames.length) {
+                int capacity = Math.max(16, length * 2);
+                frames = Arrays.copyOf(frames, capacity);
+                rules = Arrays.copyOf(rules, capacity);
+                counters = Arrays.copyOf(counters, capacity);
+            }
+            frames[length] = frame;
+            rules[length] = rule;
+            counters[length] = counter;
+            length++;
+        }
+    }
+
+    public TraceDecoder(InputStream in) {
+        Objects.requireNonNull(in);
+        this.in = in instanceof BufferedInputStream ? in : new BufferedInputStream(in);
+    }
+
+    /**
+     * @return text of the next compacted stacktrace, or null at the end of the stream.
+     * @throws EOFException if the stream ends in the middle of a record.
+     * @throws StreamCorruptedException if the stream is not written by TraceEncoder.
+     */
+    public String next() throws IOException {
+        StringBuilder result = new StringBuilder(512);
+        int first = in.read();
+        if (first < 0) {
+            return null;
+        }
+        int tag = (int) readVarlong(first);
+        while (tag == TraceEncoder.RECORD_FORGET_SEGMENTS) {
+            segments.clear();
+            first = in.read();
+            if (first < 0) {
+                return null;
+            }
+            tag = (int) readVarlong(first);
+        }
+        switch (tag) {
+            case TraceEncoder.RECORD_TEXT:
+                result.append(readLiteral());
+                break;
+            case TraceEncoder.RECORD_REPEATED:
+                long id = readVarlong();
+                StackTraceCompacter.appendRepeatedHeader(id, (int) readVarlong(), result);
+                readDescription(result);
+                result.append('\n');
+                break;
+            case TraceEncoder.RECORD_TRACE:
+                StackTraceCompacter.appendHeader(readVarlong(), result);
+                long count = readVarlong();
+                for (long i = 0; i < count; i++) {
+                    readSegment(result);
+                }
+                result.append('\n');
+                break;
+            default:
+                throw new StreamCorruptedException("unknown record " + tag);
+        }
+        return result.toString();
+    }
+
+    private void readSegment(StringBuilder result) throws IOException {
+        int kind = (int) readVarlong();
+        String prefix = tabs(readCount(MAX_DEPTH, "depth"));
+        if ((kind & TraceEncoder.SEGMENT_CAUSE) != 0) {
+            result.append('\n').append(prefix).append(TraceRenderer.CAUSE_CAPTION);
+        } else if ((kind & TraceEncoder.SEGMENT_SUPPRESSED) != 0) {
+            result.append('\n').append(prefix).append(TraceRenderer.SUPPRESSED_CAPTION);
+        }
+        if ((kind & TraceEncoder.SEGMENT_CIRCULAR) != 0) {
+            result.append(TraceRenderer.CIRCULAR_REFERENCE);
+            readDescription(result);
+            result.append(']');
+            return;
+        }
+        readDescription(result);
+        long fingerprint = readVarlong();
+        Segment segment;
+        if ((kind & TraceEncoder.SEGMENT_REFERENCE) != 0) {
+            segment = segments.get(fingerprint);
+            if (segment == null) {
+                throw new StreamCorruptedException("unknown cause " + Long.toUnsignedString(fingerprint));
+            }
+        } else {
+            segment = readFrames();
+            if (segments.size() < TraceEncoder.MAX_REMEMBERED) {
+                segments.put(fingerprint, segment);
+            }
+        }
+        FrameBuffer frames = FrameBuffer.acquire();
+        try {
+            for (int i = 0; i < segment.length; i++) {
+                if (segment.rules[i] != null) {
+                    frames.addCollapsed(segment.rules[i], segment.counters[i]);
+                } else {
+                    frames.addFrame(segment.frames[i]);
+                }
+            }
+            TraceRenderer.renderFrames(frames, prefix, result);
+        } finally {
+            frames.release();
+        }
+        TraceRenderer.renderMore(segment.inCommon, prefix, result);
+    }
+
+    private Segment readFrames() throws IOException {
+        int size = readCount(MAX_FRAMES, "number of frames");
+        Segment segment = new Segment(Math.min(size, 64));
+        for (int i = 0; i < size; i++) {
+            int entry = (int) readVarlong();
+            switch (entry) {
+                case TraceEncoder.ENTRY_COLLAPSED:
+                    String rule = readName();
+                    segment.add(null, rule, (int) readVarlong());
+                    break;
+                case TraceEncoder.ENTRY_TEXT:
+                    segment.add(readLiteral(), null, 0);
+                    break;
+                case TraceEncoder.ENTRY_FRAME:
+                    segment.add(readFrame(), null, 0);
+                    break;
+                default:
+                    throw new StreamCorruptedException("unknown frame " + entry);
+            }
+        }
+        segment.inCommon = (int) readVarlong();
+        return segment;
+    }
+
+    /**
+     * The same text as StackTraceElement.toString gives.
+     */
+    private String readFrame() throws IOException {
+        String prefix = readName();
+        String className = readName();
+        String methodName = readName();
+        String fileName = readName();
+        long zigzag = readVarlong();
+        int line = (int) (zigzag >>> 1) ^ -(int) (zigzag & 1);
+        StringBuilder frame = new StringBuilder(128);
+        if (prefix != null) {
+            frame.append(prefix);
+        }
+        frame.append(className).append('.').append(methodName).append('(');
+        if (line == -2) {
+            frame.append("Native Method");
+        } else if (fileName != null && line >= 0) {
+            frame.append(fileName).append(':').append(line);
+        } else if (fileName != null) {
+            frame.append(fileName);
+        } else {
+            frame.append("Unknown Source");
+        }
+        return frame.append(')').toString();
+    }
+
+    private void readDescription(StringBuilder result) throws IOException {
+        int kind = (int) readVarlong();
+        if (kind == TraceEncoder.DESCRIPTION_TEXT) {
+            result.append(readLiteral());
+            return;
+        }
+        result.append(readName());
+        if (kind == TraceEncoder.DESCRIPTION_MESSAGE) {
+            result.append(": ").append(readLiteral());
+        }
+    }
+
+    private String readName() throws IOException {
+        long value = readVarlong();
+        if (value == 0) {
+            return null;
+        }
+        if ((value & 1) != 0) {
+            long index = (value >>> 1) - 1;
+            if (index >= dictionary.size()) {
+                throw new StreamCorruptedException("unknown name " + index);
+            }
+            return dictionary.get((int) index);
+        }
+        String name = new String(readBytes((value >>> 1) - 1), StandardCharsets.UTF_8);
+        if (dictionary.size() < TraceEncoder.MAX_REMEMBERED) {
+            dictionary.add(name);
+        }
+        return name;
+    }
+
+    private String readLiteral() throws IOException {
+        return new String(readBytes(readVarlong()), StandardCharsets.UTF_8);
+    }
+
+    private byte[] readBytes(long length) throws IOException {
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new StreamCorruptedException("wrong length " + length);
+        }
+        byte[] bytes = new byte[(int) Math.min(length, CHUNK)];
+        int read = 0;
+        while (read < length) {
+            if (read == bytes.length) {
+                bytes = Arrays.copyOf(bytes, (int) Math.min(length, 2L * read));
+            }
+            int count = in.read(bytes, read, bytes.length - read);
+            if (count < 0) {
+                throw new EOFException();
+            }
+            read += count;
+        }
+        return bytes;
+    }
+
+    /**
+     * @throws StreamCorruptedException if the number is more than the maximum.
+     */
+    private int readCount(int max, String what) throws IOException {
+        long count = readVarlong();
+        if (count < 0 || count > max) {
+            throw new StreamCorruptedException("wrong " + what + " " + Long.toUnsignedString(count));
+        }
+        return (int) count;
+    }
+
+    private long readVarlong() throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            throw new EOFException();
+        }
+        return readVarlong(first);
+    }
+
+    private long readVarlong(int first) throws IOException {
+        long result = first & 0x7F;
+        int shift = 7;
+        int current = first;
+        while ((current & 0x80) != 0) {
+            if (shift > 63) {
+                throw new StreamCorruptedException("too long number");
+            }
+            current = in.read();
+            if (current < 0) {
+                throw new EOFException();
+            }
+            result |= (long) (current & 0x7F) << shift;
+            shift += 7;
+        }
+        return result;
+    }
+
+    private static String tabs(int count) {
+        StringBuilder result = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            result.append('\t');
+        }
+        return result.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,255 @@
+package com.nikondsl.utils.stacktrace.impl;
+
+import com.nikondsl.utils.stacktrace.utils.Fingerprint;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Writes compacted stacktraces in a binary form, which is many times smaller than the text.
+ * Numbers are written as varints. Names of classes, methods, files and rules are written
+ * once and then referred to by their number. A cause seen before is referred to by its
+ * fingerprint. That makes the stream stateful: it has to be read by a single
+ * {@link TraceDecoder} from the very beginning. Not thread safe.
+ * USAGE:
+ * TraceEncoder encoder = new TraceEncoder(new FileOutputStream("errors.bin"));
+ * compacter.compact(ex, encoder);
+ * ...
+ * encoder.close();
+ */
+public final class TraceEncoder implements Flushable, Closeable {
+    //both sides stop remembering at the same point, so they always agree
+    static final int MAX_REMEMBERED = 1 << 16;
+
+    static final int RECORD_TEXT = 0;
+    static final int RECORD_REPEATED = 1;
+    static final int RECORD_TRACE = 2;
+    static final int RECORD_FORGET_SEGMENTS = 3;
+
+    static final int SEGMENT_CAUSE = 1;
+    static final int SEGMENT_SUPPRESSED = 2;
+    static final int SEGMENT_CIRCULAR = 4;
+    static final int SEGMENT_REFERENCE = 8;
+
+    static final int DESCRIPTION_NO_MESSAGE = 0;
+    static final int DESCRIPTION_MESSAGE = 1;
+    static final int DESCRIPTION_TEXT = 2;
+
+    static final int ENTRY_FRAME = 0;
+    static final int ENTRY_COLLAPSED = 1;
+    static final int ENTRY_TEXT = 2;
+
+    private final OutputStream out;
+    private final byte[] buffer = new byte[8192];
+    private int position;
+    private final Map<String, Integer> dictionary = new HashMap<>();
+    private final Set<Long> sentSegments = new HashSet<>();
+    private RuleMatcher lastMatcher;
+
+    public TraceEncoder(OutputStream out) {
+        this.out = Objects.requireNonNull(out);
+    }
+
+    void writeText(CharSequence text) throws IOException {
+        writeVarlong(RECORD_TEXT);
+        writeLiteral(text.toString());
+    }
+
+    void writeRepeated(long id, int counter, Throwable throwable) throws IOException {
+        writeVarlong(RECORD_REPEATED);
+        writeVarlong(id);
+        writeVarlong(counter);
+        writeDescription(throwable);
+    }
+
+    void writeTrace(long id, List<TraceRenderer.Segment> segments, RuleMatcher matcher) throws IOException {
+        if (lastMatcher != matcher) {
+            //rules are changed, sent causes could be collapsed another way now
+            if (!sentSegments.isEmpty()) {
+                writeVarlong(RECORD_FORGET_SEGMENTS);
+                sentSegments.clear();
+            }
+            lastMatcher = matcher;
+        }
+        writeVarlong(RECORD_TRACE);
+        writeVarlong(id);
+        writeVarlong(segments.size());
+        for (TraceRenderer.Segment segment : segments) {
+            writeSegment(segment, matcher);
+        }
+    }
+
+    private void writeSegment(TraceRenderer.Segment segment, RuleMatcher matcher) throws IOException {
+        int kind = segment.caption == null ? 0
+                : segment.caption.equals(TraceRenderer.CAUSE_CAPTION) ? SEGMENT_CAUSE : SEGMENT_SUPPRESSED;
+        if (segment.circular) {
+            writeVarlong(kind | SEGMENT_CIRCULAR);
+            writeVarlong(segment.prefix.length());
+            writeDescription(segment.throwable);
+            return;
+        }
+        long fingerprint = fingerprint(segment);
+        if (sentSegments.contains(fingerprint)) {
+            writeVarlong(kind | SEGMENT_REFERENCE);
+            writeVarlong(segment.prefix.length());
+            writeDescription(segment.throwable);
+            writeVarlong(fingerprint);
+            return;
+        }
+        writeVarlong(kind);
+        writeVarlong(segment.prefix.length());
+        writeDescription(segment.throwable);
+        writeVarlong(fingerprint);
+        FrameBuffer frames = FrameBuffer.acquire();
+        try {
+            frames.collapse(segment.stackTrace, segment.length, matcher);
+            writeVarlong(frames.size());
+            for (int i = 0; i < frames.size(); i++) {
+                writeEntry(frames.get(i));
+            }
+        } finally {
+            frames.release();
+        }
+        writeVarlong(segment.stackTrace.length - segment.length);
+        if (sentSegments.size() < MAX_REMEMBERED) {
+            sentSegments.add(fingerprint);
+        }
+    }
+
+    private void writeEntry(FrameBuffer.StackTraceHolder holder) throws IOException {
+        if (holder.isCompacted()) {
+            writeVarlong(ENTRY_COLLAPSED);
+            writeName(holder.getCompactName());
+            writeVarlong(holder.getCounter());
+            return;
+        }
+        StackTraceElement element = holder.getElement();
+        String text = element.toString();
+        //module and class loader go before the class name on Java 9+
+        int start = text.indexOf(element.getClassName() + '.' + element.getMethodName() + '(');
+        if (start < 0) {
+            writeVarlong(ENTRY_TEXT);
+            writeLiteral(text);
+            return;
+        }
+        writeVarlong(ENTRY_FRAME);
+        writeName(start == 0 ? null : text.substring(0, start));
+        writeName(element.getClassName());
+        writeName(element.getMethodName());
+        writeName(element.getFileName());
+        int line = element.getLineNumber();
+        //zigzag, native methods have line -2
+        writeVarlong(((line << 1) ^ (line >> 31)) & 0xFFFFFFFFL);
+    }
+
+    private void writeDescription(Throwable throwable) throws IOException {
+        if (!TraceRenderer.hasPlainToString(throwable)) {
+            writeVarlong(DESCRIPTION_TEXT);
+            writeLiteral(throwable.toString());
+            return;
+        }
+        String message = throwable.getLocalizedMessage();
+        writeVarlong(message == null ? DESCRIPTION_NO_MESSAGE : DESCRIPTION_MESSAGE);
+        writeName(throwable.getClass().getName());
+        if (message != null) {
+            writeLiteral(message);
+        }
+    }
+
+    /**
+     * Identifies a cause by its class and the frames written for it, whatever the message is.
+     */
+    private static long fingerprint(TraceRenderer.Segment segment) {
+        long hash = Fingerprint.update(Fingerprint.START, TraceRenderer.classNameOf(segment.throwable));
+        hash = Fingerprint.update(hash, segment.length);
+        for (int i = 0; i < segment.length; i++) {
+            StackTraceElement frame = segment.stackTrace[i];
+            hash = Fingerprint.update(hash, frame.getClassName());
+            hash = Fingerprint.update(hash, frame.getMethodName());
+            hash = Fingerprint.update(hash, frame.getLineNumber());
+        }
+        hash = Fingerprint.update(hash, segment.stackTrace.length - segment.length);
+        return Fingerprint.finish(hash);
+    }
+
+    /**
+     * A name is written as a number: 0 for null, odd for a reference to a name written
+     * before, even for a new name followed by its UTF-8 bytes.
+     */
+    private void writeName(String name) throws IOException {
+        if (name == null) {
+            writeVarlong(0);
+            return;
+        }
+        Integer index = dictionary.get(name);
+        if (index != null) {
+            writeVarlong(((long) index + 1) << 1 | 1);
+            return;
+        }
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        writeVarlong(((long) bytes.length + 1) << 1);
+        writeBytes(bytes);
+        if (dictionary.size() < MAX_REMEMBERED) {
+            dictionary.put(name, dictionary.size());
+        }
+    }
+
+    private void writeLiteral(String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        writeVarlong(bytes.length);
+        writeBytes(bytes);
+    }
+
+    private void writeVarlong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        writeByte((int) value);
+    }
+
+    private void writeByte(int value) throws IOException {
+        if (position == buffer.length) {
+            flushBuffer();
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        if (bytes.length > buffer.length - position) {
+            flushBuffer();
+            if (bytes.length > buffer.length) {
+                out.write(bytes);
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    private void flushBuffer() throws IOException {
+        out.write(buffer, 0, position);
+        position = 0;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        out.close();
+    }
+}
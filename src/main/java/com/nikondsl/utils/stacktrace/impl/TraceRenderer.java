@@ -0,0 +1,262 @@
+package com.nikondsl.utils.stacktrace.impl;
+
+import com.nikondsl.utils.stacktrace.utils.Appendables;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Renders an exception with all its causes and suppressed exceptions in one pass,
+ * laid out the way printStackTrace does: frames a cause shares with the exception
+ * it's enclosed in are replaced by "... N more", and an exception met twice is
+ * printed as a circular reference.
+ */
+final class TraceRenderer {
+    static final String CAUSE_CAPTION = "Caused by: ";
+    static final String SUPPRESSED_CAPTION = "Suppressed: ";
+    static final String CIRCULAR_REFERENCE = "[CIRCULAR REFERENCE: ";
+    private static final StackTraceElement[] NO_FRAMES = new StackTraceElement[0];
+    //true if toString of the exception is the one of Throwable, so it can be written without a String
+    private static final ClassValue<Boolean> PLAIN_TO_STRING = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            try {
+                return type.getMethod("toString").getDeclaringClass() == Throwable.class;
+            } catch (NoSuchMethodException e) {
+                return false;
+            }
+        }
+    };
+
+    /**
+     * One exception of the chain with its own frames only.
+     */
+    static final class Segment {
+        final Throwable throwable;
+        final StackTraceElement[] stackTrace;
+        //number of frames not shared with the enclosing trace
+        final int length;
+        final String caption;
+        final String prefix;
+        final boolean circular;
+
+        Segment(Throwable throwable, StackTraceElement[] stackTrace, int length,
+                String caption, String prefix, boolean circular) {
+            this.throwable = throwable;
+            this.stackTrace = stackTrace;
+            this.length = length;
+            this.caption = caption;
+            this.prefix = prefix;
+            this.circular = circular;
+        }
+    }
+
+    private final List<Segment> segments = new ArrayList<>();
+    private final Set<Throwable> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private TraceRenderer() {
+    }
+
+    /**
+     * @param metrics where to count collapsed frames, may be null.
+     */
+    static void render(Throwable throwable, StackTraceElement[] stackTrace, RuleMatcher matcher,
+                       CompacterMetrics metrics, Appendable out) throws IOException {
+        if (throwable.getCause() == null && throwable.getSuppressed().length == 0) {
+            //the usual case, no need to collect anything
+            render(new Segment(throwable, stackTrace, stackTrace.length, null, "", false), matcher, metrics, out);
+            return;
+        }
+        TraceRenderer renderer = new TraceRenderer();
+        renderer.collect(throwable, stackTrace, null, null, "");
+        for (Segment segment : renderer.segments) {
+            render(segment, matcher, metrics, out);
+        }
+    }
+
+    /**
+     * @return the exception followed by all its suppressed exceptions and causes.
+     */
+    static List<Segment> collect(Throwable throwable, StackTraceElement[] stackTrace) {
+        TraceRenderer renderer = new TraceRenderer();
+        renderer.collect(throwable, stackTrace, null, null, "");
+        return renderer.segments;
+    }
+
+    /**
+     * @return class name of the exception, the one it's printed with for a parsed exception.
+     */
+    static String classNameOf(Throwable throwable) {
+        if (throwable instanceof ParsedThrowable) {
+            return ((ParsedThrowable) throwable).getClassName();
+        }
+        return throwable.getClass().getName();
+    }
+
+    static boolean hasPlainToString(Throwable throwable) {
+        return PLAIN_TO_STRING.get(throwable.getClass());
+    }
+
+    /**
+     * Writes the same text as toString of the exception does, but without creating
+     * a String when toString is not overridden.
+     */
+    static void describe(Throwable throwable, Appendable out) throws IOException {
+        if (!hasPlainToString(throwable)) {
+            out.append(throwable.toString());
+            return;
+        }
+        out.append(throwable.getClass().getName());
+        String message = throwable.getLocalizedMessage();
+        if (message != null) {
+            out.append(": ").append(message);
+        }
+    }
+
+    /**
+     * The exception, then its suppressed exceptions, then its cause; causes are walked
+     * in a loop, so a chain of any length does not grow the stack.
+     */
+    private void collect(Throwable throwable, StackTraceElement[] stackTrace,
+                         StackTraceElement[] enclosing, String caption, String prefix) {
+        while (throwable != null) {
+            if (!visited.add(throwable)) {
+                segments.add(new Segment(throwable, NO_FRAMES, 0, caption, prefix, true));
+                return;
+            }
+            int length = stackTrace.length - framesInCommon(stackTrace, enclosing);
+            segments.add(new Segment(throwable, stackTrace, length, caption, prefix, false));
+            for (Throwable suppressed : throwable.getSuppressed()) {
+                collect(suppressed, framesOf(suppressed), stackTrace, SUPPRESSED_CAPTION, prefix + "\t");
+            }
+            enclosing = stackTrace;
+            throwable = throwable.getCause();
+            stackTrace = framesOf(throwable);
+            caption = CAUSE_CAPTION;
+        }
+    }
+
+    /**
+     * Roughly the length of what printStackTrace prints for the exception and its causes,
+     * computed without creating any String.
+     */
+    static int printedLength(Throwable throwable, StackTraceElement[] stackTrace) {
+        long length = 0;
+        Throwable current = throwable;
+        StackTraceElement[] frames = stackTrace;
+        for (int depth = 0; current != null && depth < 64; depth++) {
+            if (depth > 0) {
+                length += CAUSE_CAPTION.length();
+                frames = framesOf(current);
+            }
+            length += classNameOf(current).length() + 1;
+            String message = hasPlainToString(current) ? current.getLocalizedMessage() : null;
+            if (message != null) {
+                length += 2 + message.length();
+            }
+            for (StackTraceElement frame : frames) {
+                //"\tat " + class + "." + method + "(" + file + ":" + line + ")\n"
+                length += 8 + frame.getClassName().length() + frame.getMethodName().length();
+                String fileName = frame.getFileName();
+                length += fileName == null ? 14 : fileName.length();
+                int line = frame.getLineNumber();
+                if (line >= 0) {
+                    //":" and the first digit, then the rest of digits
+                    length += 2;
+                    for (line /= 10; line > 0; line /= 10) {
+                        length++;
+                    }
+                }
+            }
+            if (current == current.getCause()) {
+                break;
+            }
+            current = current.getCause();
+        }
+        return (int) Math.min(length, Integer.MAX_VALUE);
+    }
+
+    private static StackTraceElement[] framesOf(Throwable throwable) {
+        StackTraceElement[] stackTrace = throwable == null ? null : throwable.getStackTrace();
+        return stackTrace == null ? NO_FRAMES : stackTrace;
+    }
+
+    private static int framesInCommon(StackTraceElement[] stackTrace, StackTraceElement[] enclosing) {
+        if (enclosing == null) {
+            return 0;
+        }
+        int m = stackTrace.length - 1;
+        int n = enclosing.length - 1;
+        while (m >= 0 && n >= 0 && stackTrace[m].equals(enclosing[n])) {
+            m--;
+            n--;
+        }
+        return stackTrace.length - 1 - m;
+    }
+
+    private static void render(Segment segment, RuleMatcher matcher, CompacterMetrics metrics,
+                               Appendable result) throws IOException {
+        String prefix = segment.prefix;
+        if (segment.caption != null) {
+            result.append('\n').append(prefix).append(segment.caption);
+        }
+        if (segment.circular) {
+            result.append(CIRCULAR_REFERENCE);
+            describe(segment.throwable, result);
+            result.append(']');
+            return;
+        }
+        describe(segment.throwable, result);
+        FrameBuffer frames = FrameBuffer.acquire();
+        try {
+            frames.collapse(segment.stackTrace, segment.length, matcher);
+            if (metrics != null) {
+                metrics.collapsed(frames);
+            }
+            renderFrames(frames, prefix, result);
+        } finally {
+            frames.release();
+        }
+        renderMore(segment.stackTrace.length - segment.length, prefix, result);
+    }
+
+    static void renderFrames(FrameBuffer frames, String prefix, Appendable result) throws IOException {
+        int lineLength = 0;
+        boolean compactedLine = false;
+        for (int i = 0; i < frames.size(); i++) {
+            FrameBuffer.StackTraceHolder element = frames.get(i);
+            if (!element.isCompacted()) {
+                result.append('\n').append(prefix).append("\tat ");
+                element.appendTo(result);
+                continue;
+            }
+            if (lineLength == 0) {
+                result.append('\n').append(prefix).append("\tat ");
+                lineLength += 4;
+                if (!compactedLine) {
+                    lineLength += element.appendTo(result);
+                }
+            }
+            if (compactedLine) {
+                lineLength += element.appendTo(result);
+            }
+            compactedLine = element.isCompacted();
+            if (lineLength > 130) {
+                compactedLine = false;
+                lineLength = 0;
+            }
+        }
+    }
+
+    static void renderMore(int inCommon, String prefix, Appendable result) throws IOException {
+        if (inCommon != 0) {
+            result.append('\n').append(prefix).append("\t... ");
+            Appendables.appendNumber(inCommon, result);
+            result.append(" more");
+        }
+    }
+}
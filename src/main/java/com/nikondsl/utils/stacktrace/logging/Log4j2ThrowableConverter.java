@@ -0,0 +1,125 @@
+package com.nikondsl.utils.stacktrace.logging;
+
+import com.nikondsl.utils.stacktrace.factory.CompacterFactory;
+import com.nikondsl.utils.stacktrace.impl.ParsedThrowable;
+import com.nikondsl.utils.stacktrace.impl.StackTraceCompacter;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.impl.ExtendedStackTraceElement;
+import org.apache.logging.log4j.core.impl.ThrowableProxy;
+import org.apache.logging.log4j.core.pattern.ConverterKeys;
+import org.apache.logging.log4j.core.pattern.PatternConverter;
+import org.apache.logging.log4j.core.pattern.ThrowablePatternConverter;
+
+/**
+ * Log4j2 converter printing the exception of an event compacted by the compacter of
+ * {@link CompacterFactory#getInstance()}. It writes straight into the StringBuilder of
+ * the layout, so an exception seen before costs no String; the only garbage is the copy
+ * of frames getStackTrace makes. An event which has lost its Throwable, for instance
+ * a deserialized one, is compacted from its ThrowableProxy. Found by log4j2 itself,
+ * the plugin is listed in the jar.
+ * Options are the ones of %ex: "none", "short", a number of lines and "separator(...)";
+ * "filters(...)" and "suffix(...)" are rejected, collapse rules do the filtering here.
+ * USAGE (log4j2.xml):
+ * &lt;PatternLayout pattern="%d %-5level %logger - %msg%n%cEx"/&gt;
+ */
+@Plugin(name = "CompactedThrowablePatternConverter", category = PatternConverter.CATEGORY)
+@ConverterKeys({"cEx", "compactedException"})
+public final class Log4j2ThrowableConverter extends ThrowablePatternConverter {
+    //deeper chains are printed as they are by the compacter anyway
+    private static final int MAX_CAUSES = 64;
+
+    private final StackTraceCompacter compacter = CompacterFactory.getInstance();
+
+    private Log4j2ThrowableConverter(Configuration configuration, String[] options) {
+        super("CompactedThrowable", "throwable", options, configuration);
+        if (this.options.hasPackages()) {
+            throw new IllegalArgumentException("filters are not supported by %cEx, use collapse rules instead");
+        }
+        if (this.options.getSuffix() != null) {
+            throw new IllegalArgumentException("suffix is not supported by %cEx");
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if filters or a suffix are given.
+     */
+    public static Log4j2ThrowableConverter newInstance(Configuration configuration, String[] options) {
+        return new Log4j2ThrowableConverter(configuration, options);
+    }
+
+    @Override
+    public void format(LogEvent event, StringBuilder toAppendTo) {
+        Throwable thrown = event.getThrown();
+        if (thrown == null && event.getThrownProxy() != null) {
+            thrown = toThrowable(event.getThrownProxy(), 0);
+        }
+        if (thrown == null || !options.anyLines()) {
+            return;
+        }
+        int length = toAppendTo.length();
+        if (length > 0 && !Character.isWhitespace(toAppendTo.charAt(length - 1))) {
+            toAppendTo.append(' ');
+        }
+        int start = toAppendTo.length();
+        if (!compacter.compactSampled(thrown, toAppendTo)) {
+            //a repeat left out in a storm
+            toAppendTo.setLength(length);
+            return;
+        }
+        if (!options.allLines()) {
+            keepLines(toAppendTo, start, options.getLines());
+        }
+        String separator = options.getSeparator();
+        if (!"\n".equals(separator)) {
+            replaceLineBreaks(toAppendTo, start, separator);
+        }
+    }
+
+    static Throwable toThrowable(ThrowableProxy proxy, int depth) {
+        if (proxy.getThrowable() != null) {
+            return proxy.getThrowable();
+        }
+        String message = proxy.getMessage();
+        ParsedThrowable parsed = new ParsedThrowable(message == null ?
+                proxy.getName() : proxy.getName() + ": " + message);
+        ExtendedStackTraceElement[] extended = proxy.getExtendedStackTrace();
+        StackTraceElement[] frames = new StackTraceElement[extended == null ? 0 : extended.length];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = extended[i].getStackTraceElement();
+        }
+        parsed.setStackTrace(frames);
+        if (depth < MAX_CAUSES) {
+            if (proxy.getSuppressedProxies() != null) {
+                for (ThrowableProxy suppressed : proxy.getSuppressedProxies()) {
+                    parsed.addSuppressed(toThrowable(suppressed, depth + 1));
+                }
+            }
+            if (proxy.getCauseProxy() != null) {
+                parsed.initCause(toThrowable(proxy.getCauseProxy(), depth + 1));
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * Cuts what is written from the start after the given number of lines.
+     */
+    private static void keepLines(StringBuilder text, int start, int lines) {
+        for (int i = start; i < text.length(); i++) {
+            if (text.charAt(i) == '\n' && --lines == 0) {
+                text.setLength(i + 1);
+                return;
+            }
+        }
+    }
+
+    private static void replaceLineBreaks(StringBuilder text, int start, String separator) {
+        for (int i = text.length() - 1; i >= start; i--) {
+            if (text.charAt(i) == '\n') {
+                text.replace(i, i + 1, separator);
+            }
+        }
+    }
+}
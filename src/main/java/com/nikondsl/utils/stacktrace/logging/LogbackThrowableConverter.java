@@ -0,0 +1,65 @@
+package com.nikondsl.utils.stacktrace.logging;
+
+import ch.qos.logback.classic.pattern.ThrowableHandlingConverter;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+import ch.qos.logback.classic.spi.ThrowableProxy;
+import ch.qos.logback.core.CoreConstants;
+import com.nikondsl.utils.stacktrace.factory.CompacterFactory;
+import com.nikondsl.utils.stacktrace.impl.ParsedThrowable;
+import com.nikondsl.utils.stacktrace.impl.StackTraceCompacter;
+
+/**
+ * Logback converter printing the exception of an event compacted by the compacter of
+ * {@link CompacterFactory#getInstance()}, instead of the full stacktrace of %ex.
+ * An event which has lost its Throwable, for instance received from a socket appender,
+ * is compacted from what its proxy keeps.
+ * USAGE (logback.xml):
+ * &lt;conversionRule conversionWord="cEx" converterClass="com.nikondsl.utils.stacktrace.logging.LogbackThrowableConverter"/&gt;
+ * &lt;pattern&gt;%d %-5level %logger - %msg%n%cEx&lt;/pattern&gt;
+ */
+public class LogbackThrowableConverter extends ThrowableHandlingConverter {
+    //deeper chains are printed as they are by the compacter anyway
+    private static final int MAX_CAUSES = 64;
+
+    private final StackTraceCompacter compacter = CompacterFactory.getInstance();
+
+    @Override
+    public String convert(ILoggingEvent event) {
+        IThrowableProxy proxy = event.getThrowableProxy();
+        if (proxy == null) {
+            return CoreConstants.EMPTY_STRING;
+        }
+        //the String can't be avoided, write of logback converters is final
+        String compacted = compacter.compactSampled(toThrowable(proxy, 0));
+        //a repeat left out in a storm
+        return compacted == null ? CoreConstants.EMPTY_STRING : compacted;
+    }
+
+    static Throwable toThrowable(IThrowableProxy proxy, int depth) {
+        if (proxy instanceof ThrowableProxy) {
+            return ((ThrowableProxy) proxy).getThrowable();
+        }
+        String message = proxy.getMessage();
+        ParsedThrowable parsed = new ParsedThrowable(message == null ?
+                proxy.getClassName() : proxy.getClassName() + ": " + message);
+        StackTraceElementProxy[] proxies = proxy.getStackTraceElementProxyArray();
+        StackTraceElement[] frames = new StackTraceElement[proxies == null ? 0 : proxies.length];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = proxies[i].getStackTraceElement();
+        }
+        parsed.setStackTrace(frames);
+        if (depth < MAX_CAUSES) {
+            if (proxy.getSuppressed() != null) {
+                for (IThrowableProxy suppressed : proxy.getSuppressed()) {
+                    parsed.addSuppressed(toThrowable(suppressed, depth + 1));
+                }
+            }
+            if (proxy.getCause() != null) {
+                parsed.initCause(toThrowable(proxy.getCause(), depth + 1));
+            }
+        }
+        return parsed;
+    }
+}
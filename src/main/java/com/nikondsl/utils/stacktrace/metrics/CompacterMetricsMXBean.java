@@ -0,0 +1,62 @@
+package com.nikondsl.utils.stacktrace.metrics;
+
+import java.util.Map;
+
+/**
+ * Metrics of a compacter as seen by JMX clients, see {@link MetricsSnapshot}
+ * for their meaning. Durations are in microseconds. The compacter can also be
+ * switched on and off here by its mode: ON, OFF or SYSTEM_PROPERTY, and the rate
+ * above which repeats are written sparsely can be changed, 0 turns it off.
+ */
+public interface CompacterMetricsMXBean {
+    String getMode();
+
+    /**
+     * @throws IllegalArgumentException if there is no such mode.
+     */
+    void setMode(String mode);
+
+    boolean isTurnedOff();
+
+    long getCompactions();
+
+    long getDuplicates();
+
+    long getSampledOut();
+
+    long getErrors();
+
+    String getLastError();
+
+    double getStormRate();
+
+    void setStormRate(double perSecond);
+
+    double getCompactionsPerSecond();
+
+    double getCompressionRatio();
+
+    Map<String, Long> getCollapsedFrames();
+
+    int getCacheSize();
+
+    int getCacheMaximumSize();
+
+    double getCacheHitRate();
+
+    long getCacheEvictions();
+
+    long getCacheExpirations();
+
+    long getInitLatencyMeanMicros();
+
+    long getInitLatency99thPercentileMicros();
+
+    long getInitLatencyMaxMicros();
+
+    long getGenerateStringLatencyMeanMicros();
+
+    long getGenerateStringLatency99thPercentileMicros();
+
+    long getGenerateStringLatencyMaxMicros();
+}
@@ -0,0 +1,78 @@
+package com.nikondsl.utils.stacktrace.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Immutable snapshot of {@link LatencyHistogram}. Counts are read one by one while
+ * other threads go on recording, so they may be off by a few.
+ */
+public final class HistogramSnapshot {
+    private final long[] buckets;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    HistogramSnapshot(long[] buckets, long sum, long max) {
+        this.buckets = buckets;
+        long total = 0;
+        for (long bucket : buckets) {
+            total += bucket;
+        }
+        this.count = total;
+        this.sum = sum;
+        this.max = max;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return mean duration in nanoseconds, 0 if nothing is recorded.
+     */
+    public long getMean() {
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * @return the longest duration in nanoseconds.
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * @param percentile from 0 to 100, for instance 99.9.
+     * @return duration in nanoseconds which the given percent of durations do not exceed,
+     * rounded up to the end of its bucket.
+     */
+    public long getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile should be from 0 to 100, but was " + percentile);
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank && seen > 0) {
+                long upper = i == 0 ? 0 : i == buckets.length - 1 ? Long.MAX_VALUE : (1L << i) - 1;
+                return Math.min(upper, max);
+            }
+        }
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return "HistogramSnapshot{" +
+                "count=" + count +
+                ", meanMicros=" + TimeUnit.NANOSECONDS.toMicros(getMean()) +
+                ", p50Micros=" + TimeUnit.NANOSECONDS.toMicros(getPercentile(50)) +
+                ", p99Micros=" + TimeUnit.NANOSECONDS.toMicros(getPercentile(99)) +
+                ", maxMicros=" + TimeUnit.NANOSECONDS.toMicros(max) +
+                '}';
+    }
+}
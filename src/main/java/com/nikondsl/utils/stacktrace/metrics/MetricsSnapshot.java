@@ -0,0 +1,152 @@
+package com.nikondsl.utils.stacktrace.metrics;
+
+import com.nikondsl.utils.stacktrace.utils.CacheStatistics;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of what a compacter has done since it was created.
+ */
+public final class MetricsSnapshot {
+    private final long uptimeMillis;
+    private final long compactions;
+    private final long duplicates;
+    private final long sampledOut;
+    private final double compactionsPerSecond;
+    private final long originalLength;
+    private final long compactedLength;
+    private final Map<String, Long> collapsedFrames;
+    private final CacheStatistics cacheStatistics;
+    private final HistogramSnapshot initLatency;
+    private final HistogramSnapshot generateStringLatency;
+    private final long errors;
+    private final String lastError;
+
+    public MetricsSnapshot(long uptimeMillis, long compactions, long duplicates, long sampledOut,
+                           double compactionsPerSecond, long originalLength, long compactedLength,
+                           Map<String, Long> collapsedFrames, CacheStatistics cacheStatistics,
+                           HistogramSnapshot initLatency, HistogramSnapshot generateStringLatency, long errors,
+                           String lastError) {
+        this.uptimeMillis = uptimeMillis;
+        this.compactions = compactions;
+        this.duplicates = duplicates;
+        this.sampledOut = sampledOut;
+        this.compactionsPerSecond = compactionsPerSecond;
+        this.originalLength = originalLength;
+        this.compactedLength = compactedLength;
+        this.collapsedFrames = Collections.unmodifiableMap(new LinkedHashMap<>(collapsedFrames));
+        this.cacheStatistics = cacheStatistics;
+        this.initLatency = initLatency;
+        this.generateStringLatency = generateStringLatency;
+        this.errors = errors;
+        this.lastError = lastError;
+    }
+
+    public long getUptimeMillis() {
+        return uptimeMillis;
+    }
+
+    /**
+     * @return number of exceptions compacted in full, i.e. thrown for the first time.
+     */
+    public long getCompactions() {
+        return compactions;
+    }
+
+    /**
+     * @return number of exceptions reported by a single line or not at all, as seen before.
+     */
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * @return number of repeats not written at all, as their exceptions were thrown too often.
+     */
+    public long getSampledOut() {
+        return sampledOut;
+    }
+
+    /**
+     * @return full compactions per second, averaged over the last few seconds, so a burst
+     * of new exceptions shows up at once however long the compacter has been running.
+     */
+    public double getCompactionsPerSecond() {
+        return compactionsPerSecond;
+    }
+
+    /**
+     * @return characters printStackTrace would have printed, roughly.
+     */
+    public long getOriginalLength() {
+        return originalLength;
+    }
+
+    /**
+     * @return characters actually written instead.
+     */
+    public long getCompactedLength() {
+        return compactedLength;
+    }
+
+    /**
+     * @return compacted length divided by original length, 1 if nothing is measured yet.
+     */
+    public double getCompressionRatio() {
+        return originalLength == 0 ? 1.0 : (double) compactedLength / originalLength;
+    }
+
+    /**
+     * @return number of frames collapsed by every rule, by its name.
+     */
+    public Map<String, Long> getCollapsedFrames() {
+        return collapsedFrames;
+    }
+
+    public CacheStatistics getCacheStatistics() {
+        return cacheStatistics;
+    }
+
+    /**
+     * @return durations of compacting an exception by init, compact and capture.
+     */
+    public HistogramSnapshot getInitLatency() {
+        return initLatency;
+    }
+
+    public HistogramSnapshot getGenerateStringLatency() {
+        return generateStringLatency;
+    }
+
+    /**
+     * @return number of failures the compacter has survived, like a rules file which cannot be loaded.
+     */
+    public long getErrors() {
+        return errors;
+    }
+
+    /**
+     * @return description of the last failure, null if there was none.
+     */
+    public String getLastError() {
+        return lastError;
+    }
+
+    @Override
+    public String toString() {
+        return "MetricsSnapshot{" +
+                "compactions=" + compactions +
+                ", duplicates=" + duplicates +
+                ", sampledOut=" + sampledOut +
+                ", compactionsPerSecond=" + getCompactionsPerSecond() +
+                ", compressionRatio=" + getCompressionRatio() +
+                ", collapsedFrames=" + collapsedFrames +
+                ", cache=" + cacheStatistics +
+                ", init=" + initLatency +
+                ", generateString=" + generateStringLatency +
+                ", errors=" + errors +
+                '}';
+    }
+}
@@ -0,0 +1,137 @@
+package com.nikondsl.utils.stacktrace.report;
+
+import com.nikondsl.utils.stacktrace.impl.ExceptionSummary;
+import com.nikondsl.utils.stacktrace.impl.StackTraceCompacter;
+import com.nikondsl.utils.stacktrace.utils.LimitedFrequency;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Reports only the first occurrence of every exception, repeats are not reported
+ * at all. Instead, once per period a summary is written with the exceptions thrown
+ * again the most during that period: how many times, how often, and when they were
+ * seen for the first and the last time.
+ * The summary is checked for being due on every reported exception; if exceptions
+ * may stop coming, call {@link #flushIfDue()} from a timer or use {@link #schedule}.
+ * USAGE:
+ * ExceptionSummaryReporter reporter = CompacterFactory.createSummaryReporter(log::warn);
+ * String compacted = reporter.report(exception);
+ * if (compacted != null) log.warn(compacted);
+ */
+public class ExceptionSummaryReporter {
+    private final StackTraceCompacter compacter;
+    private final Consumer<String> output;
+    private final LimitedFrequency frequency;
+    private final int topCount;
+
+    private Map<Long, Long> reportedCounts = new HashMap<>();
+    private long lastFlush = System.currentTimeMillis();
+
+    /**
+     * @param compacter compacter which remembers exceptions, usually the singleton one.
+     * @param output receiver of summaries.
+     * @param frequency how often summaries are written, the first one a period after the reporter is created.
+     * @param topCount how many exceptions are listed in a summary at most.
+     */
+    public ExceptionSummaryReporter(StackTraceCompacter compacter, Consumer<String> output,
+                                    LimitedFrequency frequency, int topCount) {
+        this.compacter = Objects.requireNonNull(compacter);
+        this.output = Objects.requireNonNull(output);
+        this.frequency = Objects.requireNonNull(frequency);
+        //the first call only starts the period, let it start now rather than with the first report
+        frequency.isTimePassed();
+        if (topCount <= 0) {
+            throw new IllegalArgumentException("top count should be more than 0, but was " + topCount);
+        }
+        this.topCount = topCount;
+    }
+
+    /**
+     * @param throwable exception to be reported.
+     * @return compacted stacktrace if the exception is thrown for the first time, null otherwise.
+     */
+    public String report(Throwable throwable) {
+        String compacted = compacter.compactIfNew(throwable);
+        flushIfDue();
+        return compacted;
+    }
+
+    public void flushIfDue() {
+        if (frequency.isTimePassed()) {
+            flush();
+        }
+    }
+
+    /**
+     * Checks for a summary to be written with the given period in background.
+     * @return future to cancel it.
+     */
+    public ScheduledFuture<?> schedule(ScheduledExecutorService executor, long period, TimeUnit timeUnit) {
+        return executor.scheduleAtFixedRate(this::flushIfDue, period, period, timeUnit);
+    }
+
+    /**
+     * Writes a summary of exceptions thrown again since the previous summary, if any.
+     */
+    public synchronized void flush() {
+        long now = System.currentTimeMillis();
+        long interval = Math.max(1L, now - lastFlush);
+        List<ExceptionSummary> seen = compacter.getSeenExceptions();
+        Map<Long, Long> counts = new HashMap<>(seen.size() * 2);
+        List<ExceptionSummary> repeated = new ArrayList<>();
+        Map<Long, Long> repeats = new HashMap<>();
+        long total = 0;
+        for (ExceptionSummary summary : seen) {
+            //the first occurrence is reported in full, counts of previous runs are not news
+            long baseline = Math.max(1L, summary.getRestoredCount());
+            long previous = reportedCounts.getOrDefault(summary.getId(), baseline);
+            if (previous > summary.getCount()) {
+                //forgotten and met again since then
+                previous = baseline;
+            }
+            counts.put(summary.getId(), summary.getCount());
+            long delta = summary.getCount() - previous;
+            if (delta > 0) {
+                repeated.add(summary);
+                repeats.put(summary.getId(), delta);
+                total += delta;
+            }
+        }
+        reportedCounts = counts;
+        lastFlush = now;
+        if (repeated.isEmpty()) {
+            return;
+        }
+        repeated.sort(Comparator.comparing((ExceptionSummary summary) -> repeats.get(summary.getId())).reversed());
+        StringBuilder result = new StringBuilder(256);
+        result.append("Exceptions thrown again during the last ").append(interval / 1000L).append(" s: ")
+                .append(total).append(" times, ").append(repeated.size()).append(" distinct");
+        for (int i = 0; i < repeated.size() && i < topCount; i++) {
+            ExceptionSummary summary = repeated.get(i);
+            long delta = repeats.get(summary.getId());
+            result.append("\n\t#").append(i + 1)
+                    .append(" ('").append(Long.toUnsignedString(summary.getId())).append("') ")
+                    .append(delta).append(" times, ")
+                    .append(String.format(Locale.ROOT, "%.2f", delta * 1000.0 / interval)).append("/s, ")
+                    .append(summary.getCount()).append(" in total, first seen ")
+                    .append(Instant.ofEpochMilli(summary.getFirstSeen())).append(", last seen ")
+                    .append(Instant.ofEpochMilli(summary.getLastSeen())).append(": ")
+                    .append(summary.getDescription());
+        }
+        if (repeated.size() > topCount) {
+            result.append("\n\t... ").append(repeated.size() - topCount).append(" more");
+        }
+        output.accept(result.toString());
+    }
+}
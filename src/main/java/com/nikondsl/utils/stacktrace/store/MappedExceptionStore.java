@@ -0,0 +1,436 @@
+package com.nikondsl.utils.stacktrace.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Exceptions seen before, kept in a memory mapped file, so they are still known
+ * after a restart and their counts go on across deploys. The file is a hash table
+ * of fixed size slots with linear probing:
+ * header (64 bytes): magic, version, number of slots, slot size, number of used slots;
+ * slot: id, state, body length, first seen, last seen, count, UTF-8 body.
+ * Nothing is ever removed; when 3/4 of slots are used, new exceptions are not stored.
+ * Several processes on the same host may write to one file at the same time, for instance
+ * the old and the new one during a rolling deploy: every change is made under the lock of
+ * the file, and counts are added, not set, so they sum up. A slot is marked used only when
+ * it's complete, so it's read without the lock of the file, by stores of this JVM one at a
+ * time. Threads throwing exceptions take the lock only for an exception met for the first
+ * time, the compacter writes counts in the background. After {@link #close()} every call
+ * but close is rejected. The file is read in place, it's never loaded into the heap, so it
+ * can be inspected by the command line tool of {@link #main(String[])}.
+ * USAGE:
+ * MappedExceptionStore store = MappedExceptionStore.open(Paths.get("/var/tmp/exceptions.bin"));
+ * StackTraceCompacter compacter = CompacterFactory.create(store);
+ */
+public final class MappedExceptionStore implements Closeable {
+    private static final long MAGIC = 0x53544B434D503031L;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int CAPACITY_OFFSET = 12;
+    private static final int SLOT_SIZE_OFFSET = 16;
+    private static final int SIZE_OFFSET = 20;
+
+    private static final int ID = 0;
+    private static final int STATE = 8;
+    private static final int BODY_LENGTH = 12;
+    private static final int FIRST_SEEN = 16;
+    private static final int LAST_SEEN = 24;
+    private static final int COUNT = 32;
+    private static final int BODY = 40;
+
+    private static final int USED = 1;
+
+    //a file lock is held by the JVM, so stores of one file in the JVM take turns here first
+    private static final ConcurrentMap<Path, Object> MONITORS = new ConcurrentHashMap<>();
+
+    private final Path file;
+    private final Object monitor;
+    private final int capacity;
+    private final int slotSize;
+    private final boolean readOnly;
+    //open while the store is, null for a read only store; reopened if an interrupt closes it
+    private FileChannel channel;
+    //null once closed, so the mapping can go away with it
+    private MappedByteBuffer buffer;
+
+    private MappedExceptionStore(Path file, FileChannel channel, MappedByteBuffer buffer, int capacity, int slotSize,
+                                 boolean readOnly) {
+        this.file = file;
+        this.monitor = monitorOf(file);
+        this.channel = channel;
+        this.buffer = buffer;
+        this.capacity = capacity;
+        this.slotSize = slotSize;
+        this.readOnly = readOnly;
+    }
+
+    private static Object monitorOf(Path file) {
+        return MONITORS.computeIfAbsent(file.toAbsolutePath().normalize(), path -> new Object());
+    }
+
+    /**
+     * Opens the store with 4096 slots and bodies of up to 2048 bytes.
+     */
+    public static MappedExceptionStore open(Path file) throws IOException {
+        return open(file, 4096, 2048);
+    }
+
+    /**
+     * Opens the store, creating the file if it does not exist. An existing file is
+     * used with the layout it's created with, whatever the parameters are. The file
+     * may be opened by other stores and processes at the same time.
+     * @param capacity number of slots, rounded up to a power of 2.
+     * @param maxBodyLength longer compacted stacktraces are cut.
+     * @throws IOException if the file cannot be mapped or it's not a store.
+     */
+    public static MappedExceptionStore open(Path file, int capacity, int maxBodyLength) throws IOException {
+        if (capacity <= 0 || capacity > 1 << 24) {
+            throw new IllegalArgumentException("capacity should be from 1 to " + (1 << 24) + ", but was " + capacity);
+        }
+        if (maxBodyLength < 0 || maxBodyLength > 1 << 20) {
+            throw new IllegalArgumentException("body length should be from 0 to " + (1 << 20) +
+                    ", but was " + maxBodyLength);
+        }
+        int slots = Integer.highestOneBit(capacity);
+        if (slots < capacity) {
+            slots <<= 1;
+        }
+        int slotSize = (BODY + maxBodyLength + 7) & ~7;
+        if (HEADER_SIZE + (long) slots * slotSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("store of " + slots + " slots of " + slotSize +
+                    " bytes is too big to be mapped");
+        }
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        //the one creating the file writes the header before anyone else maps it
+        synchronized (monitorOf(file)) {
+            try (FileLock ignored = channel.lock()) {
+                if (channel.size() != 0) {
+                    return map(file, channel, channel, false);
+                }
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                        HEADER_SIZE + (long) slots * slotSize);
+                buffer.putLong(0, MAGIC);
+                buffer.putInt(8, VERSION);
+                buffer.putInt(CAPACITY_OFFSET, slots);
+                buffer.putInt(SLOT_SIZE_OFFSET, slotSize);
+                buffer.putInt(SIZE_OFFSET, 0);
+                return new MappedExceptionStore(file, channel, buffer, slots, slotSize, false);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Opens an existing store for reading only, for instance by another process.
+     */
+    public static MappedExceptionStore openReadOnly(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return map(file, null, channel, true);
+        }
+    }
+
+    private static MappedExceptionStore map(Path file, FileChannel owned, FileChannel channel, boolean readOnly)
+            throws IOException {
+        if (channel.size() < HEADER_SIZE) {
+            throw new IOException(file + " is not a store of exceptions");
+        }
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+        int capacity = header.getInt(CAPACITY_OFFSET);
+        int slotSize = header.getInt(SLOT_SIZE_OFFSET);
+        if (header.getLong(0) != MAGIC || header.getInt(8) != VERSION ||
+                Integer.bitCount(capacity) != 1 || slotSize < BODY ||
+                HEADER_SIZE + (long) capacity * slotSize > Integer.MAX_VALUE ||
+                channel.size() < HEADER_SIZE + (long) capacity * slotSize) {
+            throw new IOException(file + " is not a store of exceptions");
+        }
+        MappedByteBuffer buffer = channel.map(readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE,
+                0, HEADER_SIZE + (long) capacity * slotSize);
+        return new MappedExceptionStore(file, owned, buffer, capacity, slotSize, readOnly);
+    }
+
+    /**
+     * @return the stored exception or null if it's not known.
+     */
+    public StoredException get(long id) {
+        synchronized (monitor) {
+            checkOpen();
+            int offset = find(id);
+            return offset < 0 ? null : read(offset);
+        }
+    }
+
+    /**
+     * Stores an exception thrown for the first time.
+     * @return false if it's already stored or there is no room for it.
+     */
+    public boolean put(long id, long count, long firstSeen, String body) {
+        byte[] bytes = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+        return write(() -> {
+            int offset = slotOf(id);
+            while (buffer.getInt(offset + STATE) == USED) {
+                if (buffer.getLong(offset + ID) == id) {
+                    return false;
+                }
+                offset = next(offset);
+            }
+            int size = buffer.getInt(SIZE_OFFSET);
+            if (size >= capacity - (capacity >> 2)) {
+                return false;
+            }
+            int length = Math.min(bytes.length, slotSize - BODY);
+            //do not cut a character in two
+            while (length < bytes.length && length > 0 && (bytes[length] & 0xC0) == 0x80) {
+                length--;
+            }
+            for (int i = 0; i < length; i++) {
+                buffer.put(offset + BODY + i, bytes[i]);
+            }
+            buffer.putInt(offset + BODY_LENGTH, length);
+            buffer.putLong(offset + FIRST_SEEN, firstSeen);
+            buffer.putLong(offset + LAST_SEEN, firstSeen);
+            buffer.putLong(offset + COUNT, count);
+            buffer.putLong(offset + ID, id);
+            //the slot is seen by readers only when it's complete
+            buffer.putInt(offset + STATE, USED);
+            buffer.putInt(SIZE_OFFSET, size + 1);
+            return true;
+        });
+    }
+
+    /**
+     * Adds to the count of a stored exception, so counts of all processes writing to
+     * the file sum up. The last time seen is the latest one of them.
+     * @return false if the exception is not stored.
+     */
+    public boolean add(long id, long delta, long lastSeen) {
+        return write(() -> {
+            int offset = find(id);
+            if (offset < 0) {
+                return false;
+            }
+            buffer.putLong(offset + COUNT, buffer.getLong(offset + COUNT) + delta);
+            buffer.putLong(offset + LAST_SEEN, Math.max(buffer.getLong(offset + LAST_SEEN), lastSeen));
+            return true;
+        });
+    }
+
+    /**
+     * Sets the count of a stored exception, does nothing for an unknown one.
+     */
+    public void update(long id, long count, long lastSeen) {
+        write(() -> {
+            int offset = find(id);
+            if (offset >= 0) {
+                buffer.putLong(offset + COUNT, count);
+                buffer.putLong(offset + LAST_SEEN, lastSeen);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Passes every stored exception to the action, in no particular order.
+     * The action is called out of the lock, so it may use the store.
+     */
+    public void forEach(Consumer<? super StoredException> action) {
+        List<StoredException> stored = new ArrayList<>();
+        synchronized (monitor) {
+            checkOpen();
+            for (int i = 0; i < capacity; i++) {
+                int offset = HEADER_SIZE + i * slotSize;
+                if (buffer.getInt(offset + STATE) == USED) {
+                    stored.add(read(offset));
+                }
+            }
+        }
+        stored.forEach(action);
+    }
+
+    public int size() {
+        synchronized (monitor) {
+            checkOpen();
+            return buffer.getInt(SIZE_OFFSET);
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Writes changes to the disk. They get there anyway, sooner or later, even if the
+     * JVM crashes, unless the whole machine goes down.
+     */
+    public void force() {
+        synchronized (monitor) {
+            checkOpen();
+            if (!readOnly) {
+                buffer.force();
+            }
+        }
+    }
+
+    /**
+     * Writes changes to the disk and lets the file go: the mapping is unmapped once
+     * it's garbage collected. Closing again does nothing.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (monitor) {
+            if (buffer == null) {
+                return;
+            }
+            force();
+            buffer = null;
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+
+    public boolean isClosed() {
+        synchronized (monitor) {
+            return buffer == null;
+        }
+    }
+
+    /**
+     * Makes the change under the lock of the file, so no other process changes it meanwhile.
+     */
+    private <T> T write(Supplier<T> change) {
+        checkWritable();
+        synchronized (monitor) {
+            checkOpen();
+            try (FileLock ignored = lockFile()) {
+                return change.get();
+            } catch (IOException e) {
+                throw new IllegalStateException(file + " cannot be unlocked", e);
+            }
+        }
+    }
+
+    private FileLock lockFile() {
+        //an interrupt closes the channel, the thread may be interrupted before it throws an exception
+        boolean interrupted = Thread.interrupted();
+        try {
+            while (true) {
+                try {
+                    return channel.lock();
+                } catch (ClosedByInterruptException e) {
+                    interrupted |= Thread.interrupted();
+                    channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(file + " cannot be locked", e);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private int find(long id) {
+        int offset = slotOf(id);
+        for (int i = 0; i < capacity && buffer.getInt(offset + STATE) == USED; i++) {
+            if (buffer.getLong(offset + ID) == id) {
+                return offset;
+            }
+            offset = next(offset);
+        }
+        return -1;
+    }
+
+    private StoredException read(int offset) {
+        int length = Math.min(buffer.getInt(offset + BODY_LENGTH), slotSize - BODY);
+        byte[] body = new byte[Math.max(length, 0)];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = buffer.get(offset + BODY + i);
+        }
+        return new StoredException(buffer.getLong(offset + ID), buffer.getLong(offset + COUNT),
+                buffer.getLong(offset + FIRST_SEEN), buffer.getLong(offset + LAST_SEEN),
+                new String(body, StandardCharsets.UTF_8));
+    }
+
+    private int slotOf(long id) {
+        //ids are hashes already
+        return HEADER_SIZE + ((int) (id ^ (id >>> 32)) & (capacity - 1)) * slotSize;
+    }
+
+    private int next(int offset) {
+        offset += slotSize;
+        return offset == HEADER_SIZE + capacity * slotSize ? HEADER_SIZE : offset;
+    }
+
+    private void checkOpen() {
+        if (buffer == null) {
+            throw new IllegalStateException(file + " is closed");
+        }
+    }
+
+    private void checkWritable() {
+        if (readOnly) {
+            throw new IllegalStateException(file + " is opened for reading only");
+        }
+    }
+
+    /**
+     * Prints what is kept in the store, most thrown first:
+     * java -cp utils.stacktrace.jar com.nikondsl.utils.stacktrace.store.MappedExceptionStore file [--bodies]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2 || (args.length == 2 && !"--bodies".equals(args[1]))) {
+            System.err.println("Usage: MappedExceptionStore <file> [--bodies]");
+            System.exit(2);
+        }
+        Path path = Paths.get(args[0]);
+        if (!Files.isRegularFile(path)) {
+            System.err.println("No such file: " + path);
+            System.exit(1);
+        }
+        boolean bodies = args.length == 2;
+        try (MappedExceptionStore store = openReadOnly(path)) {
+            print(store, bodies, System.out);
+        }
+    }
+
+    static void print(MappedExceptionStore store, boolean bodies, PrintStream out) {
+        List<StoredException> stored = new ArrayList<>(store.size());
+        store.forEach(stored::add);
+        stored.sort((left, right) -> Long.compare(right.getCount(), left.getCount()));
+        out.println(store.getFile() + ": " + stored.size() + " of " + store.getCapacity() + " slots used");
+        for (StoredException exception : stored) {
+            out.println("('" + Long.toUnsignedString(exception.getId()) + "') " + exception.getCount() +
+                    " times, first seen " + Instant.ofEpochMilli(exception.getFirstSeen()) +
+                    ", last seen " + Instant.ofEpochMilli(exception.getLastSeen()));
+            if (bodies) {
+                out.println(exception.getBody());
+            }
+        }
+    }
+}
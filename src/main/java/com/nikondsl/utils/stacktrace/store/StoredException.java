@@ -0,0 +1,56 @@
+package com.nikondsl.utils.stacktrace.store;
+
+/**
+ * An exception as it's kept in {@link MappedExceptionStore}.
+ */
+public final class StoredException {
+    private final long id;
+    private final long count;
+    private final long firstSeen;
+    private final long lastSeen;
+    private final String body;
+
+    public StoredException(long id, long count, long firstSeen, long lastSeen, String body) {
+        this.id = id;
+        this.count = count;
+        this.firstSeen = firstSeen;
+        this.lastSeen = lastSeen;
+        this.body = body;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return time in milliseconds when the exception was thrown for the very first time.
+     */
+    public long getFirstSeen() {
+        return firstSeen;
+    }
+
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * @return compacted stacktrace of the first occurrence, cut to the limit of the store.
+     */
+    public String getBody() {
+        return body;
+    }
+
+    @Override
+    public String toString() {
+        return "StoredException{" +
+                "id=" + Long.toUnsignedString(id) +
+                ", count=" + count +
+                ", firstSeen=" + firstSeen +
+                ", lastSeen=" + lastSeen +
+                '}';
+    }
+}
@@ -0,0 +1,272 @@
+package com.nikondsl.utils.stacktrace.tool;
+
+import com.nikondsl.utils.stacktrace.impl.CompactionMode;
+import com.nikondsl.utils.stacktrace.impl.ParsedThrowable;
+import com.nikondsl.utils.stacktrace.impl.RuleSet;
+import com.nikondsl.utils.stacktrace.impl.StackTraceCompacter;
+import com.nikondsl.utils.stacktrace.metrics.MetricsSnapshot;
+import com.nikondsl.utils.stacktrace.store.MappedExceptionStore;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compacts stacktraces found in log files written before, the same way the compacter
+ * does it for thrown exceptions: frames are collapsed by the rules, and a stacktrace
+ * met again is replaced by a single line with its id. Everything else is copied as it is.
+ * A file is memory mapped and cut into chunks at lines which cannot be inside a
+ * stacktrace; chunks are decoded and parsed by several threads at once, while the
+ * calling thread compacts and writes them in the order of the file, so the first
+ * stacktrace of the file is the one printed in full.
+ * USAGE:
+ * java -jar utils.stacktrace.jar [--threads N] [--chunk-mb N] [--charset NAME] [--rules FILE] [--store FILE] app.log [app.log.compacted]
+ * or
+ * new LogCompacter(compacter, 4, LogCompacter.DEFAULT_CHUNK_SIZE).compact(Paths.get("app.log"), writer);
+ */
+public final class LogCompacter {
+    public static final int DEFAULT_CHUNK_SIZE = 8 << 20;
+    //distinct stacktraces remembered, there is no point in forgetting them in a single run
+    static final int CACHE_SIZE = 100_000;
+    private static final String CAUSED_BY = "Caused by: ";
+    private static final int BLOCK_SIZE = 64 << 10;
+    private static final AtomicInteger THREADS = new AtomicInteger();
+
+    private final StackTraceCompacter compacter;
+    private final int threads;
+    private final int chunkSize;
+    private final Charset charset;
+
+    public LogCompacter(StackTraceCompacter compacter, int threads, int chunkSize) {
+        this(compacter, threads, chunkSize, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param compacter turned on and shared by all files, so a stacktrace met in a file
+     * is a repeat in the files compacted after it.
+     * @param threads number of threads parsing chunks.
+     * @param chunkSize bytes of a file parsed by one thread at once, a bit more to end at a whole line.
+     * @param charset of the files, it should keep '\n' a single byte, as UTF-8 or ISO-8859-1 do.
+     */
+    public LogCompacter(StackTraceCompacter compacter, int threads, int chunkSize, Charset charset) {
+        Objects.requireNonNull(compacter);
+        Objects.requireNonNull(charset);
+        if (threads <= 0) {
+            throw new IllegalArgumentException("number of threads should be more than 0, but was " + threads);
+        }
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunk size should be more than 0, but was " + chunkSize);
+        }
+        this.compacter = compacter;
+        this.threads = threads;
+        this.chunkSize = chunkSize;
+        this.charset = charset;
+    }
+
+    /**
+     * Writes the file with its stacktraces compacted. Malformed characters are replaced.
+     * @throws IOException if the file cannot be read or the Writer fails.
+     */
+    public void compact(Path input, Writer out) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "log-compacter-" + THREADS.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            //a couple of chunks per thread are parsed ahead, not the whole file
+            Deque<Future<List<Object>>> parsed = new ArrayDeque<>();
+            while (position < size || !parsed.isEmpty()) {
+                while (position < size && parsed.size() < threads * 2) {
+                    long end = boundary(channel, position + chunkSize, size);
+                    end = Math.min(end, position + Integer.MAX_VALUE);
+                    MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, position, end - position);
+                    parsed.add(executor.submit(() -> TraceParser.parse(decode(chunk))));
+                    position = end;
+                }
+                write(await(parsed.poll()), out);
+            }
+            out.flush();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void write(List<Object> parts, Writer out) throws IOException {
+        for (Object part : parts) {
+            if (part instanceof ParsedThrowable) {
+                compacter.compact((ParsedThrowable) part, out);
+            } else {
+                CharBuffer text = (CharBuffer) part;
+                out.write(text.array(), text.arrayOffset() + text.position(), text.remaining());
+            }
+        }
+    }
+
+    private CharBuffer decode(ByteBuffer bytes) throws CharacterCodingException {
+        return charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE)
+                .decode(bytes);
+    }
+
+    private static List<Object> await(Future<List<Object>> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a chunk to be parsed");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException("cannot parse a chunk", e.getCause());
+        }
+    }
+
+    /**
+     * @return start of the first line at or after the position which does not go on a
+     * stacktrace, i.e. neither is indented nor starts with "Caused by: "; size of the file if none.
+     */
+    static long boundary(FileChannel channel, long from, long size) throws IOException {
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+        long position = from;
+        boolean lineStart = false;
+        while (position < size) {
+            block.clear();
+            int read = channel.read(block, position);
+            if (read <= 0) {
+                break;
+            }
+            int i = 0;
+            for (; i < read; i++) {
+                if (lineStart) {
+                    //not enough bytes to see if it's "Caused by: ", read them from here
+                    if (i > 0 && read - i < CAUSED_BY.length() && position + read < size) {
+                        break;
+                    }
+                    if (!goesOn(block, i, read)) {
+                        return position + i;
+                    }
+                    lineStart = false;
+                }
+                lineStart = block.get(i) == '\n';
+            }
+            position += i;
+        }
+        return size;
+    }
+
+    private static boolean goesOn(ByteBuffer block, int at, int limit) {
+        byte first = block.get(at);
+        if (first == ' ' || first == '\t') {
+            return true;
+        }
+        if (limit - at < CAUSED_BY.length()) {
+            return false;
+        }
+        for (int i = 0; i < CAUSED_BY.length(); i++) {
+            if (block.get(at + i) != CAUSED_BY.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compacts a log file into another one or to the standard output:
+     * java -jar utils.stacktrace.jar [--threads N] [--chunk-mb N] [--charset NAME] [--rules FILE] [--store FILE] input [output]
+     * The store keeps stacktraces met across runs, so they are repeats in the files compacted later.
+     */
+    public static void main(String[] args) throws IOException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int chunkSize = DEFAULT_CHUNK_SIZE;
+        Charset charset = StandardCharsets.UTF_8;
+        Path rules = null;
+        Path storeFile = null;
+        Path input = null;
+        Path output = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if ("--threads".equals(arg)) {
+                    threads = Integer.parseInt(args[++i]);
+                } else if ("--chunk-mb".equals(arg)) {
+                    chunkSize = Math.toIntExact(Integer.parseInt(args[++i]) * (1L << 20));
+                } else if ("--charset".equals(arg)) {
+                    charset = Charset.forName(args[++i]);
+                } else if ("--rules".equals(arg)) {
+                    rules = Paths.get(args[++i]);
+                } else if ("--store".equals(arg)) {
+                    storeFile = Paths.get(args[++i]);
+                } else if (arg.startsWith("--") || output != null) {
+                    throw new IllegalArgumentException(arg);
+                } else if (input == null) {
+                    input = Paths.get(arg);
+                } else {
+                    output = Paths.get(arg);
+                }
+            }
+            if (input == null) {
+                throw new IllegalArgumentException("no input");
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Usage: LogCompacter [--threads N] [--chunk-mb N] [--charset NAME] " +
+                    "[--rules FILE] [--store FILE] <input> [<output>]");
+            System.exit(2);
+            return;
+        }
+        if (!Files.isRegularFile(input)) {
+            System.err.println("No such file: " + input);
+            System.exit(1);
+        }
+        MappedExceptionStore store = storeFile == null ? null : MappedExceptionStore.open(storeFile);
+        try {
+            StackTraceCompacter compacter = new StackTraceCompacter(CACHE_SIZE, 0, TimeUnit.MILLISECONDS, store);
+            compacter.setMode(CompactionMode.ON);
+            if (rules != null) {
+                compacter.setRules(RuleSet.load(rules));
+            }
+            LogCompacter logCompacter = new LogCompacter(compacter, threads, chunkSize, charset);
+            try (Writer out = output == null ?
+                    new BufferedWriter(new OutputStreamWriter(System.out, charset), BLOCK_SIZE) :
+                    Files.newBufferedWriter(output, charset)) {
+                logCompacter.compact(input, out);
+            }
+            compacter.flushStore();
+            MetricsSnapshot metrics = compacter.getMetrics();
+            System.err.println(input + ": " + metrics.getCompactions() + " stacktraces compacted, " +
+                    metrics.getDuplicates() + " repeats");
+        } finally {
+            if (store != null) {
+                store.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package com.nikondsl.utils.stacktrace.tool;
+
+import com.nikondsl.utils.stacktrace.impl.ParsedThrowable;
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Splits text of a log into plain text and stacktraces printed by printStackTrace.
+ * A stacktrace starts with the line just before its first "at" line, and goes on
+ * with frames, "... N more", "Caused by: " and "Suppressed: " blocks, told apart by
+ * their indentation, be it tabs or spaces. Frames omitted by "... N more" are taken
+ * back from the enclosing trace, so a cause gets all its frames again.
+ * Packaging data some loggers add after a frame, like "~[app.jar:1.0]", is dropped,
+ * as are the module and class loader names of Java 9.
+ */
+final class TraceParser {
+    private static final String AT = "at ";
+    private static final String MORE = "... ";
+    private static final String CAUSED_BY = "Caused by: ";
+    private static final String SUPPRESSED = "Suppressed: ";
+    private static final StackTraceElement[] NO_FRAMES = new StackTraceElement[0];
+
+    private final char[] text;
+    private final int length;
+    //start of every line and the end of the text, lines do not include line breaks
+    private final int[] starts;
+    private final int lines;
+    private int line;
+
+    private TraceParser(char[] text, int length) {
+        this.text = text;
+        this.length = length;
+        int[] found = new int[1024];
+        int count = 0;
+        found[count++] = 0;
+        for (int i = 0; i < length - 1; i++) {
+            if (text[i] == '\n') {
+                if (count == found.length) {
+                    found = Arrays.copyOf(found, count * 2);
+                }
+                found[count++] = i + 1;
+            }
+        }
+        this.lines = length == 0 ? 0 : count;
+        this.starts = found;
+    }
+
+    /**
+     * @param text decoded part of a log which does not start or end in the middle of a stacktrace.
+     * @return CharBuffers of plain text, including line breaks, and ParsedThrowables
+     * in the order they are met; the text is not copied when the buffer has an array.
+     */
+    static List<Object> parse(CharBuffer text) {
+        if (text.hasArray() && text.arrayOffset() + text.position() == 0) {
+            return new TraceParser(text.array(), text.limit()).parse();
+        }
+        char[] chars = new char[text.remaining()];
+        text.duplicate().get(chars);
+        return new TraceParser(chars, chars.length).parse();
+    }
+
+    private List<Object> parse() {
+        List<Object> result = new ArrayList<>();
+        int plainStart = 0;
+        line = 0;
+        while (line < lines) {
+            if (line + 1 < lines && !isContinuation(line) && isFrame(line + 1, indent(line))) {
+                int start = starts[line];
+                int header = line;
+                ParsedThrowable parsed = parse(header, indent(header), rest(header, indent(header)), NO_FRAMES);
+                if (parsed.getStackTrace().length == 0) {
+                    //looked like a frame, but it's not, so it's just text
+                    line = header + 1;
+                    continue;
+                }
+                if (plainStart < start) {
+                    result.add(CharBuffer.wrap(text, plainStart, start - plainStart));
+                }
+                result.add(parsed);
+                plainStart = line < lines ? starts[line] : length;
+                continue;
+            }
+            line++;
+        }
+        if (plainStart < length) {
+            result.add(CharBuffer.wrap(text, plainStart, length - plainStart));
+        }
+        return result;
+    }
+
+    /**
+     * Parses the exception of the header line with everything enclosed in it and leaves
+     * {@link #line} at the first line after it.
+     */
+    private ParsedThrowable parse(int header, int indent, String description, StackTraceElement[] enclosing) {
+        ParsedThrowable parsed = new ParsedThrowable(description);
+        List<StackTraceElement> frames = new ArrayList<>();
+        StackTraceElement[] stackTrace = null;
+        line = header + 1;
+        while (line < lines) {
+            int current = indent(line);
+            if (current > indent && stackTrace == null && startsWith(line, current, AT)) {
+                StackTraceElement frame = parseFrame(text, starts[line] + current + AT.length(), end(line));
+                if (frame == null) {
+                    break;
+                }
+                frames.add(frame);
+                line++;
+            } else if (current > indent && stackTrace == null && startsWith(line, current, MORE)) {
+                int more = parseMore(line, current);
+                if (more < 0) {
+                    break;
+                }
+                frames.addAll(Arrays.asList(enclosing).subList(Math.max(0, enclosing.length - more), enclosing.length));
+                stackTrace = toArray(parsed, frames);
+                line++;
+            } else if (current > indent && startsWith(line, current, SUPPRESSED)) {
+                if (stackTrace == null) {
+                    stackTrace = toArray(parsed, frames);
+                }
+                parsed.addSuppressed(parse(line, current, rest(line, current + SUPPRESSED.length()), stackTrace));
+            } else if (current == indent && startsWith(line, current, CAUSED_BY)) {
+                if (stackTrace == null) {
+                    stackTrace = toArray(parsed, frames);
+                }
+                parsed.initCause(parse(line, current, rest(line, current + CAUSED_BY.length()), stackTrace));
+                return parsed;
+            } else {
+                break;
+            }
+        }
+        if (stackTrace == null) {
+            toArray(parsed, frames);
+        }
+        return parsed;
+    }
+
+    private static StackTraceElement[] toArray(ParsedThrowable parsed, List<StackTraceElement> frames) {
+        StackTraceElement[] stackTrace = frames.toArray(NO_FRAMES);
+        parsed.setStackTrace(stackTrace);
+        return stackTrace;
+    }
+
+    /**
+     * @param from start of "com.acme.Service.call(Service.java:42)", after "at ".
+     * @return the frame or null if it's not a frame.
+     */
+    static StackTraceElement parseFrame(char[] text, int from, int to) {
+        int open = indexOf(text, '(', from, to);
+        int close = open < 0 ? -1 : indexOf(text, ')', open, to);
+        if (close < 0) {
+            return null;
+        }
+        //skip "app//" and "java.base@11/" of Java 9, no class name has a slash
+        int nameStart = from;
+        for (int i = from; i < open; i++) {
+            if (text[i] == '/') {
+                nameStart = i + 1;
+            }
+        }
+        int dot = -1;
+        for (int i = open - 1; i >= nameStart; i--) {
+            if (text[i] == '.') {
+                dot = i;
+                break;
+            }
+        }
+        if (dot <= nameStart || dot == open - 1) {
+            return null;
+        }
+        String className = new String(text, nameStart, dot - nameStart);
+        String methodName = new String(text, dot + 1, open - dot - 1);
+        String source = new String(text, open + 1, close - open - 1);
+        if ("Native Method".equals(source)) {
+            return new StackTraceElement(className, methodName, null, -2);
+        }
+        if ("Unknown Source".equals(source)) {
+            return new StackTraceElement(className, methodName, null, -1);
+        }
+        int colon = source.lastIndexOf(':');
+        if (colon > 0) {
+            try {
+                return new StackTraceElement(className, methodName, source.substring(0, colon),
+                        Integer.parseInt(source.substring(colon + 1)));
+            } catch (NumberFormatException e) {
+                //not a line number, take it all as the file name
+            }
+        }
+        return new StackTraceElement(className, methodName, source, -1);
+    }
+
+    private int parseMore(int line, int indent) {
+        int value = 0;
+        int i = starts[line] + indent + MORE.length();
+        int end = end(line);
+        int digits = 0;
+        for (; i < end && text[i] >= '0' && text[i] <= '9'; i++, digits++) {
+            value = value * 10 + (text[i] - '0');
+        }
+        return digits == 0 || digits > 9 ? -1 : value;
+    }
+
+    private boolean isContinuation(int line) {
+        int indent = indent(line);
+        return indent > 0 || startsWith(line, 0, CAUSED_BY);
+    }
+
+    private boolean isFrame(int line, int headerIndent) {
+        int indent = indent(line);
+        return indent > headerIndent && startsWith(line, indent, AT);
+    }
+
+    private int indent(int line) {
+        int start = starts[line];
+        int end = end(line);
+        int i = start;
+        while (i < end && (text[i] == '\t' || text[i] == ' ')) {
+            i++;
+        }
+        return i - start;
+    }
+
+    private boolean startsWith(int line, int indent, String prefix) {
+        int start = starts[line] + indent;
+        if (end(line) - start < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (text[start + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String rest(int line, int from) {
+        return new String(text, starts[line] + from, end(line) - starts[line] - from);
+    }
+
+    /**
+     * @return end of the line without "\n" and "\r".
+     */
+    private int end(int line) {
+        int end = line + 1 < lines ? starts[line + 1] : length;
+        if (end > starts[line] && text[end - 1] == '\n') {
+            end--;
+        }
+        if (end > starts[line] && text[end - 1] == '\r') {
+            end--;
+        }
+        return end;
+    }
+
+    private static int indexOf(char[] text, char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (text[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
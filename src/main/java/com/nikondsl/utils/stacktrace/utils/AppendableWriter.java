@@ -0,0 +1,64 @@
+package com.nikondsl.utils.stacktrace.utils;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Objects;
+
+/**
+ * Writer which passes everything to an Appendable, so JDK methods accepting a
+ * Writer (like Throwable.printStackTrace) can write to a StringBuilder or any
+ * other Appendable without an intermediate buffer.
+ */
+public class AppendableWriter extends Writer {
+    private final Appendable out;
+
+    public AppendableWriter(Appendable out) {
+        this.out = Objects.requireNonNull(out);
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        out.append((char) c);
+    }
+
+    @Override
+    public void write(char[] buffer, int offset, int length) throws IOException {
+        if (out instanceof StringBuilder) {
+            ((StringBuilder) out).append(buffer, offset, length);
+            return;
+        }
+        for (int i = offset; i < offset + length; i++) {
+            out.append(buffer[i]);
+        }
+    }
+
+    @Override
+    public void write(String text, int offset, int length) throws IOException {
+        out.append(text, offset, offset + length);
+    }
+
+    @Override
+    public Writer append(CharSequence text) throws IOException {
+        out.append(text);
+        return this;
+    }
+
+    @Override
+    public Writer append(CharSequence text, int start, int end) throws IOException {
+        out.append(text, start, end);
+        return this;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (out instanceof Flushable) {
+            ((Flushable) out).flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+}
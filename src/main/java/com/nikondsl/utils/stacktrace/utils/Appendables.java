@@ -0,0 +1,54 @@
+package com.nikondsl.utils.stacktrace.utils;
+
+import java.io.IOException;
+
+/**
+ * Appends numbers digit by digit, so no String is created for them.
+ */
+public final class Appendables {
+
+    private Appendables() {
+    }
+
+    /**
+     * @return number of characters appended.
+     */
+    public static int appendNumber(long value, Appendable out) throws IOException {
+        if (value < 0) {
+            if (value == Long.MIN_VALUE) {
+                out.append("-9223372036854775808");
+                return 20;
+            }
+            out.append('-');
+            return 1 + appendPositive(-value, out);
+        }
+        return appendPositive(value, out);
+    }
+
+    /**
+     * Appends the value treating it as unsigned, the same as Long.toUnsignedString does.
+     * @return number of characters appended.
+     */
+    public static int appendUnsigned(long value, Appendable out) throws IOException {
+        if (value >= 0) {
+            return appendPositive(value, out);
+        }
+        long quotient = Long.divideUnsigned(value, 10);
+        int count = appendPositive(quotient, out);
+        out.append((char) ('0' + (value - quotient * 10)));
+        return count + 1;
+    }
+
+    private static int appendPositive(long value, Appendable out) throws IOException {
+        long divisor = 1;
+        int count = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+            count++;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            out.append((char) ('0' + value / divisor % 10));
+        }
+        return count;
+    }
+}
@@ -0,0 +1,252 @@
+package com.nikondsl.utils.stacktrace.utils;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Concurrent cache bounded by size. Reading a present key never takes a lock.
+ * When the cache grows over its limit, the thread which has just added an entry
+ * evicts the least recently used tenth of all entries in one go, so the cost of
+ * eviction is spread over many insertions. Entries not accessed for longer than
+ * the expiry time are treated as absent. The access time is kept with a precision of
+ * a millisecond, so a key read by many threads at once is not written on every read.
+ * USAGE:
+ * BoundedCache<Long, AtomicInteger> cache = new BoundedCache<>(1000, 1, TimeUnit.HOURS);
+ * cache.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet();
+ */
+public class BoundedCache<K, V> {
+    private static final long ACCESS_GRANULARITY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final ConcurrentMap<K, Node<V>> map = new ConcurrentHashMap<>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final int maximumSize;
+    private final long expireAfterAccessNanos;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    private static final class Node<V> {
+        private final V value;
+        private volatile long lastAccess;
+
+        Node(V value, long lastAccess) {
+            this.value = value;
+            this.lastAccess = lastAccess;
+        }
+
+        void touch(long now) {
+            if (now - lastAccess >= ACCESS_GRANULARITY_NANOS) {
+                lastAccess = now;
+            }
+        }
+    }
+
+    public BoundedCache(int maximumSize) {
+        this(maximumSize, 0, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param maximumSize number of entries to be kept.
+     * @param expireAfterAccess time after the last access when an entry is expired, 0 means never.
+     * @param timeUnit unit of the expiry time.
+     */
+    public BoundedCache(int maximumSize, long expireAfterAccess, TimeUnit timeUnit) {
+        Objects.requireNonNull(timeUnit);
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("maximum size should be more than 0, but was " + maximumSize);
+        }
+        if (expireAfterAccess < 0) {
+            throw new IllegalArgumentException("expiry time should not be negative, but was " + expireAfterAccess);
+        }
+        this.maximumSize = maximumSize;
+        this.expireAfterAccessNanos = timeUnit.toNanos(expireAfterAccess);
+    }
+
+    /**
+     * Returns the value and marks it as recently used.
+     * @return value or null if there is no such key or it's expired.
+     */
+    public V get(K key) {
+        long now = System.nanoTime();
+        Node<V> node = map.get(key);
+        if (node != null && !removeIfExpired(key, node, now)) {
+            node.touch(now);
+            hits.increment();
+            return node.value;
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Returns the value without marking it as used and without counting it in statistics.
+     * @return value or null if there is no such key or it's expired.
+     */
+    public V peek(K key) {
+        Node<V> node = map.get(key);
+        if (node == null || isExpired(node, System.nanoTime())) {
+            return null;
+        }
+        return node.value;
+    }
+
+    /**
+     * Returns the value for the key, creating it if absent. The mapping function may be
+     * called by several threads racing for the same key, but only one value is kept.
+     */
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        long now = System.nanoTime();
+        Node<V> node = map.get(key);
+        if (node != null && !removeIfExpired(key, node, now)) {
+            node.touch(now);
+            hits.increment();
+            return node.value;
+        }
+        misses.increment();
+        Node<V> created = new Node<>(mappingFunction.apply(key), now);
+        Node<V> existing = map.putIfAbsent(key, created);
+        if (existing != null) {
+            existing.touch(now);
+            return existing.value;
+        }
+        if (map.size() > maximumSize) {
+            evict();
+        }
+        return created.value;
+    }
+
+    /**
+     * Adds the value unless the key is already present; it's not counted in statistics.
+     * Together with {@link #get(Object)} it does the same as computeIfAbsent without
+     * a capturing lambda, so a hit allocates nothing.
+     * @return the value already present or null if the given one is added.
+     */
+    public V putIfAbsent(K key, V value) {
+        long now = System.nanoTime();
+        Node<V> created = new Node<>(value, now);
+        Node<V> existing = map.putIfAbsent(key, created);
+        while (existing != null) {
+            if (!removeIfExpired(key, existing, now)) {
+                existing.touch(now);
+                return existing.value;
+            }
+            existing = map.putIfAbsent(key, created);
+        }
+        if (map.size() > maximumSize) {
+            evict();
+        }
+        return null;
+    }
+
+    public void put(K key, V value) {
+        map.put(key, new Node<>(value, System.nanoTime()));
+        if (map.size() > maximumSize) {
+            evict();
+        }
+    }
+
+    /**
+     * Passes every entry which is not expired to the action, without marking them as used.
+     */
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        long now = System.nanoTime();
+        for (Map.Entry<K, Node<V>> entry : map.entrySet()) {
+            if (!isExpired(entry.getValue(), now)) {
+                action.accept(entry.getKey(), entry.getValue().value);
+            }
+        }
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    public void clear() {
+        map.clear();
+    }
+
+    public CacheStatistics getStatistics() {
+        return new CacheStatistics(hits.sum(), misses.sum(), evictions.sum(), expirations.sum(),
+                map.size(), maximumSize);
+    }
+
+    private boolean isExpired(Node<V> node, long now) {
+        return expireAfterAccessNanos > 0 && now - node.lastAccess > expireAfterAccessNanos;
+    }
+
+    private boolean removeIfExpired(K key, Node<V> node, long now) {
+        if (!isExpired(node, now)) {
+            return false;
+        }
+        if (map.remove(key, node)) {
+            expirations.increment();
+        }
+        return true;
+    }
+
+    private void evict() {
+        //somebody is already evicting, no need to wait for him
+        if (!evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            long now = System.nanoTime();
+            int size = map.size();
+            if (size <= maximumSize) {
+                return;
+            }
+            Object[] keys = new Object[size];
+            long[] lastAccesses = new long[size];
+            int count = 0;
+            for (Map.Entry<K, Node<V>> entry : map.entrySet()) {
+                if (removeIfExpired(entry.getKey(), entry.getValue(), now)) {
+                    continue;
+                }
+                if (count == keys.length) {
+                    break;
+                }
+                keys[count] = entry.getKey();
+                lastAccesses[count] = entry.getValue().lastAccess;
+                count++;
+            }
+            int toEvict = map.size() - maximumSize;
+            if (toEvict <= 0) {
+                return;
+            }
+            toEvict = Math.min(count, Math.max(toEvict, maximumSize / 10));
+            if (toEvict == 0) {
+                return;
+            }
+            long[] sorted = Arrays.copyOf(lastAccesses, count);
+            Arrays.sort(sorted);
+            long threshold = sorted[toEvict - 1];
+            for (int i = 0; i < count && toEvict > 0; i++) {
+                if (lastAccesses[i] > threshold) {
+                    continue;
+                }
+                Node<V> node = map.get(keys[i]);
+                //the entry could be touched after taking the snapshot, keep it in such case
+                if (node != null && node.lastAccess == lastAccesses[i] && map.remove(keys[i], node)) {
+                    evictions.increment();
+                    toEvict--;
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.nikondsl.utils.stacktrace.utils;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/**
+ * Appendable which encodes characters as UTF-8 straight into a ByteBuffer, with
+ * no intermediate String or char array. Throws BufferOverflowException if the
+ * buffer has not enough space left. A surrogate pair may be split across calls:
+ * a high surrogate is kept until the next character comes, so call {@link #flush()}
+ * once everything is appended.
+ */
+public class ByteBufferAppendable implements Appendable {
+    private final ByteBuffer buffer;
+    //the first half of a pair, written when the second one comes
+    private char highSurrogate;
+
+    public ByteBufferAppendable(ByteBuffer buffer) {
+        this.buffer = Objects.requireNonNull(buffer);
+    }
+
+    @Override
+    public Appendable append(CharSequence text) {
+        if (text == null) {
+            return append("null", 0, 4);
+        }
+        return append(text, 0, text.length());
+    }
+
+    @Override
+    public Appendable append(CharSequence text, int start, int end) {
+        if (text == null) {
+            return append("null", start, end);
+        }
+        for (int i = start; i < end; i++) {
+            append(text.charAt(i));
+        }
+        return this;
+    }
+
+    @Override
+    public Appendable append(char c) {
+        if (highSurrogate != 0) {
+            char high = highSurrogate;
+            highSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                int codePoint = Character.toCodePoint(high, c);
+                buffer.put((byte) (0xf0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3f)));
+                return this;
+            }
+            //unpaired surrogate
+            buffer.put((byte) '?');
+        }
+        if (c < 0x80) {
+            buffer.put((byte) c);
+        } else if (c < 0x800) {
+            buffer.put((byte) (0xc0 | (c >> 6)));
+            buffer.put((byte) (0x80 | (c & 0x3f)));
+        } else if (Character.isHighSurrogate(c)) {
+            highSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            buffer.put((byte) '?');
+        } else {
+            buffer.put((byte) (0xe0 | (c >> 12)));
+            buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+            buffer.put((byte) (0x80 | (c & 0x3f)));
+        }
+        return this;
+    }
+
+    /**
+     * Writes a high surrogate left without its pair at the end, as '?' like the other
+     * unpaired surrogates are.
+     */
+    public void flush() {
+        if (highSurrogate != 0) {
+            highSurrogate = 0;
+            buffer.put((byte) '?');
+        }
+    }
+}
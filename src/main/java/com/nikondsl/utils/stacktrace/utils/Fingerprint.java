@@ -0,0 +1,48 @@
+package com.nikondsl.utils.stacktrace.utils;
+
+/**
+ * 64 bit FNV-1a hash with a final avalanche step. Much less prone to collisions
+ * than String.hashCode(), while still cheap enough to be computed for every
+ * logged exception. The hash can be built incrementally without any allocation:
+ * USAGE:
+ * long hash = Fingerprint.START;
+ * hash = Fingerprint.update(hash, className);
+ * hash = Fingerprint.update(hash, lineNumber);
+ * long fingerprint = Fingerprint.finish(hash);
+ */
+public final class Fingerprint {
+    public static final long START = 0xcbf29ce484222325L;
+    private static final long PRIME = 0x100000001b3L;
+
+    private Fingerprint() {
+    }
+
+    public static long of(CharSequence text) {
+        return finish(update(START, text));
+    }
+
+    public static long update(long hash, CharSequence text) {
+        if (text == null) {
+            return update(hash, -1);
+        }
+        for (int i = 0; i < text.length(); i++) {
+            hash = (hash ^ text.charAt(i)) * PRIME;
+        }
+        //length works as a separator, so "ab"+"c" differs from "a"+"bc"
+        return update(hash, text.length());
+    }
+
+    public static long update(long hash, int value) {
+        hash = (hash ^ (value & 0xffff)) * PRIME;
+        return (hash ^ (value >>> 16)) * PRIME;
+    }
+
+    public static long finish(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -3,6 +3,7 @@ package com.nikondsl.utils.stacktrace.utils;
 import java.io.Serializable;
 import java.util.Objects;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 /**
  * This class can be used as simple Timer, for instance to log some info only 1 time per second
@@ -27,6 +28,9 @@ public class LimitedFrequency implements Serializable {
         return new LimitedFrequency(1, TimeUnit.HOURS);
     }
 
+    private static final AtomicLongFieldUpdater<LimitedFrequency> LAST_ACCESS_TIME =
+            AtomicLongFieldUpdater.newUpdater(LimitedFrequency.class, "lastAccessTime");
+
     private volatile long lastAccessTime;
     private final long delayTime;
 
@@ -47,17 +51,17 @@ public class LimitedFrequency implements Serializable {
         this.delayTime = delayTime;
     }
 
+    /**
+     * @return true once per period, to a single thread only, however many threads call it.
+     */
     public boolean isTimePassed(){
         long currentTime = System.nanoTime() / 1_000_000L;
-        if (lastAccessTime == 0) {
-            lastAccessTime = currentTime;
+        long last = lastAccessTime;
+        if (last == 0) {
+            LAST_ACCESS_TIME.compareAndSet(this, 0, currentTime);
             return false;
         }
-        if (lastAccessTime < currentTime - delayTime){
-            lastAccessTime = currentTime;
-            return true;
-        }
-        return false;
+        return last < currentTime - delayTime && LAST_ACCESS_TIME.compareAndSet(this, last, currentTime);
     }
 
     public long get() {
@@ -0,0 +1,68 @@
+package com.nikondsl.utils.stacktrace.impl;
+
+import com.nikondsl.utils.stacktrace.utils.Fingerprint;
+
+import java.util.Collections;
+import java.util.Iterator;
+
+/**
+ * Frames of the thread calling the compacter, skipping frames of the compacter itself.
+ * Frames are walked lazily by StackWalker: recognising an exception stops after the
+ * top frames, the rest of the stack is only turned into StackTraceElements for an
+ * exception which is going to be printed.
+ */
+final class StackCapture {
+
+    /**
+     * Number of top frames used to recognise an exception seen before.
+     */
+    static final int DEPTH = Integer.getInteger("stacktrace.compacter.capture.depth", 32);
+
+    //frames are fetched in batches, let the first one be enough for the fingerprint
+    private static final StackWalker WALKER = StackWalker.getInstance(Collections.emptySet(), DEPTH + 8);
+
+    private StackCapture() {
+    }
+
+    /**
+     * @return null, frames are walked when they are needed.
+     */
+    static StackTraceElement[] snapshot() {
+        return null;
+    }
+
+    /**
+     * Adds class, method and line of at most {@link #DEPTH} top frames to the hash,
+     * the same fields as on Java 8, so ids kept in a store do not change with the Java
+     * version. Finding out a line makes StackFrame create its StackTraceElement, but
+     * only the top frames are walked.
+     */
+    static long fingerprint(long hash, StackTraceElement[] snapshot) {
+        return WALKER.walk(frames -> {
+            long result = hash;
+            Iterator<StackWalker.StackFrame> iterator = frames
+                    .dropWhile(frame -> isOwnFrame(frame.getClassName()))
+                    .limit(DEPTH)
+                    .iterator();
+            while (iterator.hasNext()) {
+                StackWalker.StackFrame frame = iterator.next();
+                result = Fingerprint.update(result, frame.getClassName());
+                result = Fingerprint.update(result, frame.getMethodName());
+                result = Fingerprint.update(result, frame.getLineNumber());
+            }
+            return result;
+        });
+    }
+
+    static StackTraceElement[] frames(StackTraceElement[] snapshot) {
+        return WALKER.walk(frames -> frames
+                .dropWhile(frame -> isOwnFrame(frame.getClassName()))
+                .map(StackWalker.StackFrame::toStackTraceElement)
+                .toArray(StackTraceElement[]::new));
+    }
+
+    static boolean isOwnFrame(String className) {
+        return className.equals(StackCapture.class.getName())
+                || className.equals(StackTraceCompacter.class.getName());
+    }
+}
@@ -0,0 +1,115 @@
+package com.nikondsl.utils.stacktrace.async;
+
+import com.nikondsl.utils.stacktrace.impl.StackTraceCompacter;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncCompacterTest {
+
+    @Test
+    public void testAllSubmittedAreDeliveredOnClose() throws Exception {
+        List<String> delivered = new CopyOnWriteArrayList<>();
+        AsyncCompacter compacter = new AsyncCompacter(new StackTraceCompacter(), delivered::addAll,
+                100, 2, 8, OverflowPolicy.BLOCK, 1);
+        for (int i = 0; i < 50; i++) {
+            assertTrue(compacter.submit(new IllegalStateException("failure " + i)));
+        }
+        compacter.close();
+
+        assertEquals(50, delivered.size());
+        assertEquals(1, delivered.stream().filter(trace -> trace.startsWith("Here's a compacted exception")).count());
+        assertEquals(0, compacter.getDroppedCount());
+        assertFalse(compacter.submit(new IllegalStateException("too late")));
+    }
+
+    @Test
+    public void testFailedCompactionLosesOnlyItsException() throws Exception {
+        List<String> delivered = new CopyOnWriteArrayList<>();
+        AsyncCompacter compacter = new AsyncCompacter(new StackTraceCompacter(), delivered::addAll,
+                100, 1, 8, OverflowPolicy.BLOCK, 1);
+        compacter.submit(new IllegalStateException("before"));
+        compacter.submit(new IllegalStateException("broken") {
+            @Override
+            public StackTraceElement[] getStackTrace() {
+                throw new UnsupportedOperationException("no frames");
+            }
+        });
+        compacter.submit(new IllegalStateException("after"));
+        compacter.close();
+
+        assertEquals(2, delivered.size());
+        assertEquals(1, compacter.getFailureCount());
+    }
+
+    @Test
+    public void testOverflowIsDropped() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> delivered = new CopyOnWriteArrayList<>();
+        AsyncCompacter compacter = new AsyncCompacter(new StackTraceCompacter(), traces -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            delivered.addAll(traces);
+        }, 4, 1, 1, OverflowPolicy.DROP, 1);
+        for (int i = 0; i < 20; i++) {
+            compacter.submit(new IllegalStateException("failure " + i));
+        }
+        release.countDown();
+        compacter.close();
+
+        assertTrue(compacter.getDroppedCount() > 0);
+        assertEquals(20, compacter.getDroppedCount() + compacter.getSubmittedCount());
+        assertEquals(compacter.getSubmittedCount(), delivered.size());
+    }
+
+    @Test(timeout = 10000)
+    public void testSinkMayClose() {
+        AtomicReference<AsyncCompacter> self = new AtomicReference<>();
+        List<String> delivered = new CopyOnWriteArrayList<>();
+        AsyncCompacter compacter = new AsyncCompacter(new StackTraceCompacter(), traces -> {
+            delivered.addAll(traces);
+            self.get().close();
+        }, 100, 2, 1, OverflowPolicy.BLOCK, 1);
+        self.set(compacter);
+        for (int i = 0; i < 10; i++) {
+            compacter.submit(new IllegalStateException("failure " + i));
+        }
+        compacter.close();
+
+        assertTrue(delivered.size() > 0);
+        assertEquals(compacter.getSubmittedCount(), delivered.size());
+    }
+
+    @Test(timeout = 10000)
+    public void testInterruptedCloseStopsWaiting() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AsyncCompacter compacter = new AsyncCompacter(new StackTraceCompacter(), traces -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, 100, 1, 1, OverflowPolicy.BLOCK, 1);
+        for (int i = 0; i < 10; i++) {
+            compacter.submit(new IllegalStateException("failure " + i));
+        }
+        started.await();
+        Thread.currentThread().interrupt();
+        compacter.close();
+
+        assertTrue(Thread.interrupted());
+        assertEquals(9, compacter.getDroppedCount());
+    }
+}
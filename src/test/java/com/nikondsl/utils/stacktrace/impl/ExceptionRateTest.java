@@ -0,0 +1,55 @@
+package com.nikondsl.utils.stacktrace.impl;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ExceptionRateTest {
+
+    @Test
+    public void testStormIsWrittenByPowersOfTenAndCalmsDown() {
+        ExceptionRate rate = new ExceptionRate(0, 0);
+        //a thousand throws during the first second are all written
+        for (int count = 1; count <= 1000; count++) {
+            assertTrue(rate.isWritten(count, count - 1, 100));
+        }
+        assertFalse(rate.isStorm());
+
+        List<Long> written = new ArrayList<>();
+        for (long count = 1001; count <= 200_000; count++) {
+            if (rate.isWritten(count, 1000 + count / 1000, 100)) {
+                written.add(count);
+            }
+        }
+        assertTrue(rate.isStorm());
+        assertTrue(String.valueOf(rate.getRate()), rate.getRate() > 100);
+        assertEquals("[1001, 1011, 1101, 2001, 11001, 101001]", written.toString());
+
+        //a single throw a minute later, the storm is over
+        assertTrue(rate.isWritten(200_001, 61_000, 100));
+        assertFalse(rate.isStorm());
+        assertTrue(rate.isWritten(200_002, 61_000, 100));
+    }
+
+    @Test
+    public void testAverageFollowsRecentSecondsOnly() {
+        ExceptionRate rate = new ExceptionRate(0, 0);
+        //an hour of one event per second
+        long[] count = {0};
+        for (long now = 0; now < 3_600_000; now += 1000) {
+            count[0]++;
+            rate.average(() -> count[0], now);
+        }
+        assertEquals(1.0, rate.getRate(), 0.01);
+        //then a burst of 500 in a second shows up at once
+        count[0] += 500;
+        assertTrue(String.valueOf(rate.getRate()), rate.average(() -> count[0], 3_600_000) > 100);
+        //and is forgotten once it's over, with nothing counted meanwhile
+        assertTrue(String.valueOf(rate.getRate()), rate.average(() -> count[0], 3_630_000) < 1);
+    }
+}
@@ -0,0 +1,147 @@
+package com.nikondsl.utils.stacktrace.impl;
+
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.PatternSyntaxException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RuleSetTest {
+    private final StackTraceElement[] frames = new StackTraceElement[] {
+            new StackTraceElement("com.example.orders.OrderService", "load", "OrderService.java", 10),
+            new StackTraceElement("com.example.orders.internal.Dao", "find", "Dao.java", 20),
+            new StackTraceElement("com.example.billing.internal.Client", "call", "Client.java", 30),
+            new StackTraceElement("com.example.Proxy$$EnhancerBySpringCGLIB$$1", "load", null, -1),
+            new StackTraceElement("org.springframework.web.servlet.FrameworkServlet", "service", "FrameworkServlet.java", 897),
+            new StackTraceElement("io.netty.channel.AbstractChannelHandlerContext", "fireChannelRead", null, 0),
+    };
+
+    @Test
+    public void testPrefixGlobAndRegexRules() throws Exception {
+        RuleSet rules = RuleSet.read(new StringReader(
+                "collapse.--\\ Netty = io.netty.\n" +
+                "collapse.--\\ Internals = glob:com.example.*.internal.**\n" +
+                "collapse.--\\ Proxies = regex:.*\\\\$\\\\$EnhancerBySpringCGLIB\\\\$\\\\$.*\n" +
+                "expand.Billing = com.example.billing.\n"));
+        StackTraceCompacter compacter = new StackTraceCompacter();
+        compacter.setRules(rules);
+        String compacted = compacter.compact(exception());
+
+        assertTrue(compacted, compacted.contains("com.example.orders.OrderService.load"));
+        assertTrue(compacted, compacted.contains("\t-- Internals\n"));
+        assertTrue(compacted, compacted.contains("com.example.billing.internal.Client.call" +
+                "(Client.java:30)\t-- Proxies\t-- Spring\t-- Netty\n"));
+    }
+
+    @Test
+    public void testGeneratedClassesAreNotRemembered() {
+        RuleMatcher matcher = new RuleMatcher(Collections.singletonList(
+                new ProcessorRule("-- Reflection", new String[] {"sun.reflect.", "com.example.Proxy"})),
+                Collections.emptyList());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("-- Reflection", matcher.match("sun.reflect.GeneratedMethodAccessor" + i).getCompactedName());
+            assertEquals("-- Reflection", matcher.match("com.example.Proxy$$EnhancerBySpringCGLIB$$" + i)
+                    .getCompactedName());
+            matcher.match("com.example.Service$$Lambda$" + i + "/0x0000000800c0b000");
+        }
+        matcher.match("com.example.Service");
+        assertEquals(1, matcher.classifiedSize());
+        //a full memo starts over rather than stops remembering
+        for (int i = 0; i < 20_000; i++) {
+            matcher.match("com.example.Service" + i);
+        }
+        assertTrue(matcher.classifiedSize() < 10_000);
+        assertTrue(matcher.classifiedSize() > 0);
+    }
+
+    @Test
+    public void testAllRulesAreReturnedInOrder() throws Exception {
+        RuleSet rules = RuleSet.read(new StringReader(
+                "defaults = false\n" +
+                "collapse.B = b.\n" +
+                "collapse.A = a.\n" +
+                "expand.C = c., glob:d.**\n"));
+        StackTraceCompacter compacter = new StackTraceCompacter();
+        compacter.setRules(rules);
+        compacter.addRuleToCollapse("D", new String[] {"d."});
+
+        List<ProcessorRule> all = compacter.getAllRules();
+        assertEquals(4, all.size());
+        assertEquals("B", all.get(0).getCompactedName());
+        assertEquals("A", all.get(1).getCompactedName());
+        assertEquals("D", all.get(2).getCompactedName());
+        assertEquals("C", all.get(3).getCompactedName());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownKeyIsRejected() throws Exception {
+        RuleSet.read(new StringReader("colapse.A = a.\n"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongRegexIsRejectedWhenLoaded() throws Exception {
+        RuleSet.read(new StringReader("collapse.A = regex:a.(\n"));
+    }
+
+    @Test
+    public void testWrongRegexAddedAtRuntimeIsNotKept() {
+        StackTraceCompacter compacter = new StackTraceCompacter();
+        int rules = compacter.getAllRules().size();
+        try {
+            compacter.addRuleToCollapse("-- Broken", new String[] {"regex:a.("});
+            fail("a wrong regex is accepted");
+        } catch (PatternSyntaxException expected) {
+            //the rules stay as they were
+        }
+        assertEquals(rules, compacter.getAllRules().size());
+
+        compacter.addRuleToCollapse("-- Orders", new String[] {"com.example.orders."});
+        assertEquals(rules + 1, compacter.getAllRules().size());
+        assertTrue(compacter.compact(exception()).contains("-- Orders"));
+    }
+
+    @Test
+    public void testChangedFileIsReloaded() throws Exception {
+        Path file = Files.createTempFile("rules", ".properties");
+        try {
+            Files.write(file, Collections.singletonList("collapse.--\\ Orders = com.example.orders."),
+                    StandardCharsets.UTF_8);
+            StackTraceCompacter compacter = new StackTraceCompacter();
+            compacter.watchRules(file);
+            assertTrue(compacter.compact(exception()).contains("-- Orders"));
+            assertFalse(compacter.reloadRules());
+
+            Files.write(file, Collections.singletonList("collapse.--\\ Example = com.example."),
+                    StandardCharsets.UTF_8);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 2000));
+            assertTrue(compacter.reloadRules());
+            String compacted = compacter.compactIfNew(exception(new IllegalStateException()));
+            assertFalse(compacted, compacted.contains("-- Orders"));
+            assertTrue(compacted, compacted.contains("-- Example\t<4 lines>"));
+
+            compacter.unwatchRules();
+            assertFalse(compacter.reloadRules());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private Exception exception() {
+        return exception(new Exception("failed"));
+    }
+
+    private Exception exception(Exception exception) {
+        exception.setStackTrace(frames);
+        return exception;
+    }
+}
@@ -1,19 +1,36 @@
 package com.nikondsl.utils.stacktrace.impl;
 
-import com.nikondsl.utils.stacktrace.impl.StackTraceCompacter;
+import com.nikondsl.utils.stacktrace.metrics.MetricsSnapshot;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.junit.MockitoJUnitRunner;
 
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 @RunWith(MockitoJUnitRunner.class)
 public class StackTraceCompacterTest {
@@ -131,4 +148,363 @@ public class StackTraceCompacterTest {
         shortenedStacktrace = compacter.generateString(true);
         assertTrue(shortenedStacktrace.startsWith("Exception ('" + id + "') has been thrown #2 times"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testInitReturnsWholeTraceOnEveryCall() {
+        compacter = new StackTraceCompacter();
+        Exception first = new IllegalStateException("first");
+        first.setStackTrace(trace1);
+        Exception second = new IllegalStateException("second");
+        second.setStackTrace(trace1Same);
+
+        String body = compacter.init(first);
+        assertTrue(body, body.startsWith("java.lang.IllegalStateException: first\n"));
+        assertTrue(body.contains("-- Spring"));
+        assertEquals(compacter.generateString(false), body);
+        String again = compacter.init(second);
+        assertEquals(body.replace("first", "second"), again);
+        assertTrue(compacter.generateString(true).contains("has been thrown #2 times"));
+        //compact reports the third one by a line
+        assertTrue(compacter.compact(first).startsWith("Exception ('"));
+    }
+
+    @Test
+    public void testUserDefinedRuleToCollapse() {
+        Exception cause = new Exception();
+        cause.setStackTrace(trace1);
+        compacter = new StackTraceCompacter();
+        compacter.addRuleToCollapse("-- SDL", new String[] {"com.sdl."});
+        String shortenedStacktrace = compacter.compact(cause);
+
+        assertTrue(shortenedStacktrace.contains("-- SDL"));
+        assertFalse(shortenedStacktrace.contains("com.sdl.dxa.modelservice."));
+    }
+
+    @Test
+    public void testRuleToBeLeftExpandedWinsOverCollapsing() {
+        Exception cause = new Exception();
+        cause.setStackTrace(trace1);
+        compacter = new StackTraceCompacter();
+        compacter.addRuleToBeLeftExpanded("Spring AOP", new String[] {"org.springframework.aop."});
+        String shortenedStacktrace = compacter.compact(cause);
+
+        assertTrue(shortenedStacktrace.contains("org.springframework.aop.support.AopUtils"));
+        assertFalse(shortenedStacktrace.contains("org.springframework.web."));
+    }
+
+    @Test
+    public void testConcurrentInitOnSharedInstance() throws Exception {
+        compacter = new StackTraceCompacter();
+        int threads = 8;
+        int perThread = 200;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        AtomicInteger fullyPrinted = new AtomicInteger();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    Exception cause = new Exception();
+                    cause.setStackTrace(trace1);
+                    String shortenedStacktrace = compacter.compact(cause);
+                    if (shortenedStacktrace.startsWith("Here's a compacted exception")) {
+                        assertTrue(shortenedStacktrace.contains("-- Spring"));
+                        assertTrue(shortenedStacktrace.contains("com.sdl.dxa.modelservice."));
+                        fullyPrinted.incrementAndGet();
+                    } else {
+                        assertTrue(shortenedStacktrace.startsWith("Exception ('"));
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        assertEquals(1, fullyPrinted.get());
+
+        Exception last = new Exception();
+        last.setStackTrace(trace1Same);
+        compacter.compact(last);
+        assertTrue(compacter.generateString(true).contains("#" + (threads * perThread + 1) + " times"));
+    }
+
+    @Test
+    public void testRepeatsAreWrittenSparselyInStorm() {
+        compacter = new StackTraceCompacter();
+        AtomicLong now = new AtomicLong(System.currentTimeMillis());
+        compacter.setClock(now::get);
+        compacter.setStormRate(5);
+        for (int i = 0; i < 100; i++) {
+            Exception cause = new Exception();
+            cause.setStackTrace(trace1);
+            assertNotNull(compacter.compactSampled(cause));
+        }
+        //the rate is learnt once a second
+        now.addAndGet(ExceptionRate.WINDOW_MILLIS + 100);
+        List<String> written = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            Exception cause = new Exception();
+            cause.setStackTrace(trace1);
+            String compacted = compacter.compactSampled(cause);
+            if (compacted != null) {
+                written.add(compacted.substring(compacted.indexOf('#'), compacted.indexOf(':')));
+            }
+        }
+        assertEquals(Arrays.asList("#101 times", "#111 times", "#201 times"), written);
+        assertEquals(197, compacter.getMetrics().getSampledOut());
+        assertTrue(compacter.generateString(true).contains("#300 times"));
+
+        //compact writes every repeat, whatever the rate is
+        Exception cause = new Exception();
+        cause.setStackTrace(trace1);
+        assertTrue(compacter.compact(cause).contains("#301 times"));
+        compacter.setStormRate(0);
+        assertTrue(compacter.compactSampled(cause).contains("#302 times"));
+    }
+
+    @Test
+    public void testSameStructureWithAnotherMessageIsRepeated() {
+        compacter = new StackTraceCompacter();
+        Exception first = new IllegalStateException("order 1 is not found");
+        first.setStackTrace(trace1);
+        Exception second = new IllegalStateException("order 2 is not found");
+        second.setStackTrace(trace1Same);
+        Exception third = new IllegalArgumentException("order 2 is not found");
+        third.setStackTrace(trace1Same);
+
+        assertTrue(compacter.compact(first).startsWith("Here's a compacted exception ('"));
+        String repeated = compacter.compact(second);
+        assertTrue(repeated.contains("has been thrown #2 times"));
+        assertTrue(repeated.contains("order 2 is not found"));
+        assertTrue(compacter.compact(third).startsWith("Here's a compacted exception ('"));
+    }
+
+    @Test
+    public void testAddedRuleAppliesToClassesAlreadyMet() {
+        compacter = new StackTraceCompacter();
+        Exception first = new Exception();
+        first.setStackTrace(trace1);
+        assertTrue(compacter.compact(first).contains("com.sdl.dxa.modelservice."));
+
+        compacter.addRuleToCollapse("-- SDL", new String[] {"com.sdl."});
+        Exception second = new Exception();
+        second.setStackTrace(trace1Same);
+        compacter.compact(second);
+        String shortenedStacktrace = compacter.generateString(false);
+
+        assertTrue(shortenedStacktrace.contains("-- SDL"));
+        assertFalse(shortenedStacktrace.contains("com.sdl.dxa.modelservice."));
+    }
+
+    @Test
+    public void testStreamingOutputIsTheSameAsString() throws Exception {
+        Exception cause = new IllegalStateException("caf\u00e9 \ud83d\ude00", new Exception("inner"));
+        cause.setStackTrace(trace1);
+        String expected = new StackTraceCompacter().compact(cause);
+
+        StringBuilder builder = new StringBuilder("prefix ");
+        new StackTraceCompacter().compact(cause, builder);
+        assertEquals("prefix " + expected, builder.toString());
+
+        StringWriter writer = new StringWriter();
+        new StackTraceCompacter().compact(cause, writer);
+        assertEquals(expected, writer.toString());
+
+        ByteBuffer buffer = ByteBuffer.allocate(16 * 1024);
+        new StackTraceCompacter().compact(cause, buffer);
+        buffer.flip();
+        assertEquals(expected, StandardCharsets.UTF_8.decode(buffer).toString());
+    }
+
+    @Test
+    public void testRepeatAllocatesOnlyTheCloneOfFrames() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        Assume.assumeTrue(allocations.isThreadAllocatedMemorySupported() &&
+                allocations.isThreadAllocatedMemoryEnabled());
+        compacter = new StackTraceCompacter();
+        IllegalStateException exception = new IllegalStateException("repeated");
+        exception.setStackTrace(trace2);
+        StringBuilder out = new StringBuilder(1024);
+        long threadId = Thread.currentThread().getId();
+        //warm up, so the repeat is compiled
+        for (int i = 0; i < 50_000; i++) {
+            out.setLength(0);
+            compacter.compact(exception, out);
+        }
+        int repeats = 10_000;
+        long before = allocations.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < repeats; i++) {
+            out.setLength(0);
+            compacter.compact(exception, out);
+        }
+        long perRepeat = (allocations.getThreadAllocatedBytes(threadId) - before) / repeats;
+
+        assertTrue(out.toString(), out.toString().contains("has been thrown #"));
+        //getStackTrace returns a clone: a header and a reference of at most 8 bytes per frame
+        long clone = 16 + 8L * trace2.length;
+        assertTrue(perRepeat + " bytes per repeat", perRepeat <= clone + 16);
+    }
+
+    @Test
+    public void testTooSmallBufferIsLeftAsItWas() {
+        compacter = new StackTraceCompacter();
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.put("prefix".getBytes(StandardCharsets.UTF_8));
+        try {
+            compacter.compact(new IllegalStateException("does not fit"), buffer);
+            fail("the trace does not fit");
+        } catch (BufferOverflowException expected) {
+            assertEquals(6, buffer.position());
+        }
+        assertEquals(64, buffer.limit());
+    }
+
+    @Test
+    public void testCaptureTakesFramesOfTheCaller() {
+        compacter = new StackTraceCompacter();
+        List<String> results = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            results.add(failWithoutStackTrace("order " + i));
+        }
+
+        assertTrue(results.get(0).startsWith("Here's a compacted exception ('"));
+        assertTrue(results.get(0).contains("java.lang.IllegalStateException: order 0"));
+        assertTrue(results.get(0).contains("\tat " + getClass().getName() + ".failWithoutStackTrace("));
+        assertFalse(results.get(0).contains(StackTraceCompacter.class.getName() + "."));
+        assertTrue(results.get(1).contains("has been thrown #2 times: java.lang.IllegalStateException: order 1"));
+    }
+
+    private String failWithoutStackTrace(String message) {
+        Exception exception = new IllegalStateException(message) {
+            @Override
+            public synchronized Throwable fillInStackTrace() {
+                return this;
+            }
+
+            @Override
+            public String toString() {
+                return "java.lang.IllegalStateException: " + getMessage();
+            }
+        };
+        return compacter.capture(exception);
+    }
+
+    @Test
+    public void testCausesAreRenderedInOnePassLikePrintStackTrace() {
+        Exception cause = new IllegalArgumentException("inner");
+        cause.setStackTrace(trace2);
+        Exception wrapper = new IllegalStateException("outer", cause);
+        wrapper.setStackTrace(Arrays.copyOfRange(trace2, 14, trace2.length));
+        Exception suppressed = new Exception("while closing");
+        suppressed.setStackTrace(trace3);
+        wrapper.addSuppressed(suppressed);
+
+        String result = new StackTraceCompacter().compact(wrapper);
+
+        assertEquals(1, count(result, "Here's a compacted exception"));
+        //all frames of the suppressed one are shared with the enclosing trace
+        assertTrue(result.contains("\n\tSuppressed: java.lang.Exception: while closing\n\t\t... 3 more"));
+        assertTrue(result.contains("\nCaused by: java.lang.IllegalArgumentException: inner\n\tat "));
+        assertTrue(result.contains("\n\t... 8 more"));
+        assertTrue(result.indexOf("Suppressed: ") < result.indexOf("Caused by: "));
+    }
+
+    @Test
+    public void testCircularCausesAreRenderedOnce() {
+        Exception first = new IllegalStateException("first");
+        first.setStackTrace(trace1);
+        Exception second = new IllegalArgumentException("second", first);
+        second.setStackTrace(trace3);
+        first.initCause(second);
+
+        String result = new StackTraceCompacter().compact(first);
+
+        assertEquals(1, count(result, "Caused by: java.lang.IllegalArgumentException: second"));
+        assertTrue(result.contains("Caused by: [CIRCULAR REFERENCE: java.lang.IllegalStateException: first]"));
+    }
+
+    @Test
+    public void testLongChainOfWrappers() {
+        Throwable chain = new IllegalStateException("level 0");
+        chain.setStackTrace(trace2);
+        for (int level = 1; level < 12; level++) {
+            chain = new RuntimeException("level " + level, chain);
+            chain.setStackTrace(Arrays.copyOfRange(trace2, level, trace2.length));
+        }
+
+        String result = new StackTraceCompacter().compact(chain);
+
+        assertEquals(11, count(result, "Caused by: "));
+        for (int level = 11; level > 0; level--) {
+            assertTrue(result.indexOf("level " + level + "\n") < result.indexOf("level " + (level - 1) + "\n"));
+        }
+        assertTrue(result.contains("\n\t... " + (trace2.length - 2) + " more"));
+    }
+
+    @Test
+    public void testMetricsAreVisibleByApiAndJmx() throws Exception {
+        compacter = new StackTraceCompacter();
+        Exception exception = new Exception("counted");
+        exception.setStackTrace(trace2);
+        for (int i = 0; i < 5; i++) {
+            compacter.compact(exception);
+        }
+        compacter.generateString(true);
+
+        MetricsSnapshot metrics = compacter.getMetrics();
+        assertEquals(1, metrics.getCompactions());
+        assertEquals(4, metrics.getDuplicates());
+        assertEquals(5, metrics.getInitLatency().getCount());
+        assertEquals(1, metrics.getGenerateStringLatency().getCount());
+        assertEquals(1, metrics.getCacheStatistics().getSize());
+        assertEquals(Long.valueOf(6), metrics.getCollapsedFrames().get("-- Reflection"));
+        assertTrue(metrics.toString(), metrics.getCompressionRatio() < 0.5);
+
+        ObjectName name = compacter.registerMBean("test");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            assertEquals(1L, server.getAttribute(name, "Compactions"));
+            assertEquals(4L, server.getAttribute(name, "Duplicates"));
+            assertEquals(1, server.getAttribute(name, "CacheSize"));
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+
+    @Test
+    public void testModeIsSwitchedAtRuntime() throws Exception {
+        compacter = new StackTraceCompacter();
+        Exception exception = new Exception("switched");
+        exception.setStackTrace(trace2);
+        compacter.compact(exception);
+        assertEquals(CompactionMode.SYSTEM_PROPERTY, compacter.getMode());
+
+        compacter.setMode(CompactionMode.OFF);
+        assertTrue(compacter.isTurnedOff());
+        assertTrue(compacter.getSeenExceptions().isEmpty());
+        String printed = compacter.compact(exception);
+        assertTrue(printed, printed.startsWith("java.lang.Exception: switched"));
+        assertTrue(printed, printed.contains("\tat sun.reflect.GeneratedMethodAccessor341.invoke"));
+
+        ObjectName name = compacter.registerMBean("switched");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.setAttribute(name, new Attribute("Mode", "ON"));
+            assertEquals(false, server.getAttribute(name, "TurnedOff"));
+        } finally {
+            server.unregisterMBean(name);
+        }
+        assertEquals(CompactionMode.ON, compacter.getMode());
+        assertTrue(compacter.compact(exception).startsWith("Here's a compacted exception"));
+    }
+
+    private static int count(String text, String part) {
+        int result = 0;
+        for (int index = text.indexOf(part); index >= 0; index = text.indexOf(part, index + 1)) {
+            result++;
+        }
+        return result;
+    }
+}
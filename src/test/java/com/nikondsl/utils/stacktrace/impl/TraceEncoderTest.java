@@ -0,0 +1,132 @@
+package com.nikondsl.utils.stacktrace.impl;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TraceEncoderTest {
+    private final StackTraceElement[] frames = new StackTraceElement[] {
+            new StackTraceElement("com.sdl.dxa.modelservice.service.ContentService", "loadPageContent", "ContentService.java", 175),
+            new StackTraceElement("sun.reflect.GeneratedMethodAccessor341", "invoke", null, 0),
+            new StackTraceElement("java.lang.reflect.Method", "invoke", null, -2),
+            new StackTraceElement("org.springframework.aop.support.AopUtils", "invokeJoinpointUsingReflection", "AopUtils.java", 333),
+            new StackTraceElement("org.springframework.aop.framework.ReflectiveMethodInvocation", "proceed", "ReflectiveMethodInvocation.java", 157),
+            new StackTraceElement("com.sdl.dxa.modelservice.controller.PageModelController", "getPage", "PageModelController.java", 103),
+            new StackTraceElement("com.sdl.dxa.modelservice.controller.PageModelController", "render", "PageModelController.java", -1),
+            new StackTraceElement("org.apache.catalina.connector.CoyoteAdapter", "service", "CoyoteAdapter.java", 342),
+            new StackTraceElement("java.lang.Thread", "run", null, 0),
+    };
+
+    @Test
+    public void testDecodedTextIsTheSameAsCompacted() throws Exception {
+        List<Throwable> exceptions = new ArrayList<>();
+        Exception cause = exception(new IllegalStateException("caf\u00e9 is closed"), 2);
+        exceptions.add(exception(new RuntimeException("first", cause), 0));
+        exceptions.add(exception(new RuntimeException("first again", cause), 0));
+        exceptions.add(exception(new IllegalArgumentException("another wrapper", cause), 1));
+        Exception suppressing = exception(new IllegalStateException(), 3);
+        suppressing.addSuppressed(exception(new Exception("while closing"), 5));
+        exceptions.add(suppressing);
+        Exception first = exception(new IllegalStateException("first"), 4);
+        Exception second = exception(new IllegalArgumentException("second", first), 6);
+        first.initCause(second);
+        exceptions.add(first);
+        exceptions.add(exception(new Exception("custom") {
+            @Override
+            public String toString() {
+                return "custom description";
+            }
+        }, 2));
+        exceptions.add(new Exception("with real frames"));
+        Exception noFrames = new Exception();
+        noFrames.setStackTrace(new StackTraceElement[0]);
+        exceptions.add(noFrames);
+        exceptions.add(null);
+
+        StackTraceCompacter text = new StackTraceCompacter();
+        StackTraceCompacter binary = new StackTraceCompacter();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TraceEncoder encoder = new TraceEncoder(bytes);
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < exceptions.size(); i++) {
+            if (i == 4) {
+                //causes sent before are collapsed another way from now on
+                text.addRuleToCollapse("-- SDL", new String[] {"com.sdl."});
+                binary.addRuleToCollapse("-- SDL", new String[] {"com.sdl."});
+            }
+            expected.add(text.compact(exceptions.get(i)));
+            binary.compact(exceptions.get(i), encoder);
+        }
+        encoder.flush();
+
+        TraceDecoder decoder = new TraceDecoder(new ByteArrayInputStream(bytes.toByteArray()));
+        for (String trace : expected) {
+            assertEquals(trace, decoder.next());
+        }
+        assertNull(decoder.next());
+    }
+
+    @Test
+    public void testEncodedIsMuchSmallerThanText() throws Exception {
+        StackTraceCompacter text = new StackTraceCompacter();
+        StackTraceCompacter binary = new StackTraceCompacter();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TraceEncoder encoder = new TraceEncoder(bytes);
+        long textLength = 0;
+        for (int i = 0; i < 100; i++) {
+            Exception cause = exception(new IllegalStateException("order " + i + " is not found"), i % 3);
+            Exception exception = exception(new RuntimeException("request " + i + " failed", cause), i % 7);
+            textLength += text.compact(exception).getBytes(StandardCharsets.UTF_8).length;
+            binary.compact(exception, encoder);
+        }
+        encoder.close();
+
+        assertTrue(bytes.size() + " of " + textLength, bytes.size() * 4 < textLength);
+    }
+
+    @Test
+    public void testWrongNumberOfFramesIsRejected() throws Exception {
+        //a trace of one segment described as "x", with 2^21 frames
+        byte[] tooMany = {TraceEncoder.RECORD_TRACE, 5, 1, 0, 0, TraceEncoder.DESCRIPTION_TEXT, 1, 'x', 7,
+                (byte) 0x80, (byte) 0x80, (byte) 0x80, 1};
+        try {
+            new TraceDecoder(new ByteArrayInputStream(tooMany)).next();
+            fail("too many frames");
+        } catch (StreamCorruptedException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("number of frames"));
+        }
+        //1000 frames promised, none given
+        byte[] truncated = Arrays.copyOf(tooMany, tooMany.length - 2);
+        truncated[truncated.length - 2] = (byte) 0xE8;
+        truncated[truncated.length - 1] = 7;
+        try {
+            new TraceDecoder(new ByteArrayInputStream(truncated)).next();
+            fail("frames are missing");
+        } catch (EOFException expected) {
+            //nothing is allocated for frames which are not there
+        }
+    }
+
+    /**
+     * Frames starting from the given one, plus one more frame to make the trace distinct.
+     */
+    private <T extends Throwable> T exception(T exception, int from) {
+        StackTraceElement[] trace = new StackTraceElement[frames.length - from + 1];
+        trace[0] = new StackTraceElement("com.example.Service", "call" + from, "Service.java", from);
+        System.arraycopy(frames, from, trace, 1, frames.length - from);
+        exception.setStackTrace(trace);
+        return exception;
+    }
+}
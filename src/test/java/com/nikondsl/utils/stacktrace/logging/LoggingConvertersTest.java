@@ -0,0 +1,90 @@
+package com.nikondsl.utils.stacktrace.logging;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.PatternLayout;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEventVO;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LoggingConvertersTest {
+
+    @Test
+    public void testLogbackConverterCompacts() {
+        LoggerContext context = new LoggerContext();
+        PatternLayout layout = new PatternLayout();
+        layout.setContext(context);
+        layout.getInstanceConverterMap().put("cEx", LogbackThrowableConverter.class.getName());
+        layout.setPattern("%msg%n%cEx");
+        layout.start();
+        Exception cause = exception(new IllegalStateException("not connected"), "org.hibernate.Session");
+        Exception thrown = exception(new RuntimeException("logback failed", cause), "com.acme.LogbackService");
+        LoggingEvent event = new LoggingEvent("fqcn", context.getLogger("test"), Level.ERROR, "failed", thrown, null);
+
+        String first = layout.doLayout(event);
+        assertTrue(first, first.startsWith("failed\nHere's a compacted exception ('"));
+        assertTrue(first, first.contains("Caused by: java.lang.IllegalStateException: not connected\n\tat \t-- Hibernate"));
+
+        //an event received from another JVM has no Throwable, but the same fingerprint
+        String second = layout.doLayout(LoggingEventVO.build(event));
+        assertTrue(second, second.contains("has been thrown #2 times: java.lang.RuntimeException: logback failed\n"));
+    }
+
+    @Test
+    public void testLog4j2ConverterCompactsIntoLayoutBuffer() {
+        org.apache.logging.log4j.core.layout.PatternLayout layout =
+                org.apache.logging.log4j.core.layout.PatternLayout.newBuilder().withPattern("%m%cEx").build();
+        Exception thrown = exception(new IllegalArgumentException("log4j2 failed"), "com.acme.Log4j2Service");
+        Log4jLogEvent event = Log4jLogEvent.newBuilder()
+                .setMessage(new SimpleMessage("failed"))
+                .setThrown(thrown)
+                .build();
+
+        String first = layout.toSerializable(event);
+        assertTrue(first, first.startsWith("failed Here's a compacted exception ('"));
+        StringBuilder second = new StringBuilder();
+        layout.serialize(event, second);
+        assertTrue(second.toString(), second.toString().contains("has been thrown #2 times: "));
+        assertEquals("failed", org.apache.logging.log4j.core.layout.PatternLayout.newBuilder()
+                .withPattern("%m%cEx{none}").build().toSerializable(event));
+    }
+
+    @Test
+    public void testLog4j2ConverterTakesOptionsAndProxies() {
+        Exception thrown = exception(new IllegalStateException("proxy failed"), "com.acme.Log4j2Proxied");
+        //a deserialized event keeps only the proxy
+        Log4jLogEvent event = Log4jLogEvent.deserialize(Log4jLogEvent.serialize(Log4jLogEvent.newBuilder()
+                .setMessage(new SimpleMessage("failed"))
+                .setThrown(thrown)
+                .build(), false));
+
+        String first = org.apache.logging.log4j.core.layout.PatternLayout.newBuilder()
+                .withPattern("%m%n%cEx{2}{separator(|)}").build().toSerializable(event);
+        assertTrue(first, first.matches("failed\nHere's a compacted exception \\('\\d+'\\)\\|" +
+                "java.lang.IllegalStateException: proxy failed\\|"));
+        String second = org.apache.logging.log4j.core.layout.PatternLayout.newBuilder()
+                .withPattern("%m%n%cEx").build().toSerializable(event);
+        assertTrue(second, second.contains("has been thrown #2 times: java.lang.IllegalStateException: proxy failed\n"));
+        try {
+            Log4j2ThrowableConverter.newInstance(null, new String[]{"filters(com.acme)"});
+            fail("filters are rejected");
+        } catch (IllegalArgumentException expected) {
+            assertTrue(expected.getMessage().contains("filters"));
+        }
+    }
+
+    private static Exception exception(Exception exception, String className) {
+        StackTraceElement[] frames = new StackTraceElement[4];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = new StackTraceElement(className + i, "call", "Source.java", 10 + i);
+        }
+        exception.setStackTrace(frames);
+        return exception;
+    }
+}
@@ -0,0 +1,30 @@
+package com.nikondsl.utils.stacktrace.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testPercentilesAreRoundedUpToPowersOfTwo() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 98; i++) {
+            histogram.record(1000);
+        }
+        histogram.record(0);
+        histogram.record(-5);
+        histogram.record(1_000_000);
+        histogram.record(Long.MAX_VALUE);
+
+        HistogramSnapshot snapshot = histogram.snapshot();
+        assertEquals(102, snapshot.getCount());
+        assertEquals(0, snapshot.getPercentile(0));
+        assertEquals(1023, snapshot.getPercentile(50));
+        assertEquals(1023, snapshot.getPercentile(98));
+        assertEquals((1 << 20) - 1, snapshot.getPercentile(99));
+        assertEquals(Long.MAX_VALUE, snapshot.getPercentile(100));
+        assertEquals(Long.MAX_VALUE, snapshot.getMax());
+        assertEquals(0, new LatencyHistogram().snapshot().getPercentile(99));
+    }
+}
@@ -0,0 +1,77 @@
+package com.nikondsl.utils.stacktrace.report;
+
+import com.nikondsl.utils.stacktrace.impl.StackTraceCompacter;
+import com.nikondsl.utils.stacktrace.utils.LimitedFrequency;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ExceptionSummaryReporterTest {
+
+    @Test
+    public void testRepeatsAreSummarized() {
+        List<String> summaries = new ArrayList<>();
+        ExceptionSummaryReporter reporter = new ExceptionSummaryReporter(new StackTraceCompacter(),
+                summaries::add, LimitedFrequency.createOncePerHour(), 1);
+        List<String> reported = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            reported.add(reporter.report(often(i)));
+            if (i < 2) {
+                reported.add(reporter.report(rarely(i)));
+            }
+        }
+        assertNotNull(reported.get(0));
+        assertNotNull(reported.get(1));
+        assertEquals(2, reported.stream().filter(trace -> trace != null).count());
+
+        reporter.flush();
+        assertEquals(1, summaries.size());
+        String summary = summaries.get(0);
+        assertTrue(summary.contains("5 times, 2 distinct"));
+        assertTrue(summary.contains("4 times"));
+        assertTrue(summary.contains("java.lang.IllegalStateException: often 0"));
+        assertTrue(summary.contains("... 1 more"));
+
+        //nothing thrown again since the previous summary
+        reporter.flush();
+        assertEquals(1, summaries.size());
+        assertNull(reporter.report(rarely(2)));
+    }
+
+    @Test
+    public void testFirstSummaryComesOnePeriodAfterCreation() throws Exception {
+        List<String> summaries = new ArrayList<>();
+        ExceptionSummaryReporter reporter = new ExceptionSummaryReporter(new StackTraceCompacter(),
+                summaries::add, new LimitedFrequency(100, TimeUnit.MILLISECONDS), 1);
+        reporter.report(often(0));
+        reporter.report(often(1));
+        assertTrue(summaries.isEmpty());
+        Thread.sleep(200);
+        reporter.report(often(2));
+        assertEquals(1, summaries.size());
+        assertTrue(summaries.get(0), summaries.get(0).contains("2 times, 1 distinct"));
+    }
+
+    private static Exception often(int i) {
+        return withTrace(new IllegalStateException("often " + i));
+    }
+
+    private static Exception rarely(int i) {
+        return withTrace(new IllegalArgumentException("rarely " + i));
+    }
+
+    private static Exception withTrace(Exception exception) {
+        exception.setStackTrace(new StackTraceElement[] {
+                new StackTraceElement("com.example.Service", "call", "Service.java", 10),
+                new StackTraceElement("java.lang.Thread", "run", null, 0),
+        });
+        return exception;
+    }
+}
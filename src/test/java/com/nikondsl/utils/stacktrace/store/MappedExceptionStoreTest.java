@@ -0,0 +1,181 @@
+package com.nikondsl.utils.stacktrace.store;
+
+import com.nikondsl.utils.stacktrace.factory.CompacterFactory;
+import com.nikondsl.utils.stacktrace.impl.StackTraceCompacter;
+import com.nikondsl.utils.stacktrace.report.ExceptionSummaryReporter;
+import com.nikondsl.utils.stacktrace.utils.LimitedFrequency;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MappedExceptionStoreTest {
+    private Path file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = Files.createTempFile("exceptions", ".bin");
+        Files.delete(file);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void testStoredExceptionsSurviveReopening() throws Exception {
+        try (MappedExceptionStore store = MappedExceptionStore.open(file, 10, 16)) {
+            assertEquals(16, store.getCapacity());
+            assertTrue(store.put(1L, 1, 1000L, "short body"));
+            assertTrue(store.put(-17L, 1, 2000L, "a body much longer than sixteen bytes"));
+            assertFalse(store.put(1L, 1, 3000L, "again"));
+            store.update(1L, 5, 4000L);
+            store.update(42L, 5, 4000L);
+            assertNull(store.get(42L));
+        }
+        //the layout of the existing file wins
+        try (MappedExceptionStore store = MappedExceptionStore.open(file, 1024, 1024)) {
+            assertEquals(16, store.getCapacity());
+            assertEquals(2, store.size());
+            StoredException first = store.get(1L);
+            assertEquals(5, first.getCount());
+            assertEquals(1000L, first.getFirstSeen());
+            assertEquals(4000L, first.getLastSeen());
+            assertEquals("short body", first.getBody());
+            assertEquals("a body much long", store.get(-17L).getBody());
+        }
+    }
+
+    @Test
+    public void testNewExceptionsAreNotStoredWhenFull() throws Exception {
+        try (MappedExceptionStore store = MappedExceptionStore.open(file, 8, 0)) {
+            for (long id = 0; id < 6; id++) {
+                assertTrue(store.put(id << 3, 1, 0L, ""));
+            }
+            assertFalse(store.put(100L, 1, 0L, ""));
+            for (long id = 0; id < 6; id++) {
+                assertEquals(id << 3, store.get(id << 3).getId());
+            }
+        }
+    }
+
+    @Test
+    public void testRestartedCompacterKnowsExceptionsSeenBefore() throws Exception {
+        String first;
+        try (MappedExceptionStore store = MappedExceptionStore.open(file)) {
+            StackTraceCompacter compacter = CompacterFactory.create(store);
+            first = compacter.compact(exception());
+            assertTrue(first, first.startsWith("Here's a compacted exception"));
+            compacter.compact(exception());
+            compacter.flushStore();
+            //the body is the one written for the caller
+            assertEquals(first.substring(first.indexOf('\n') + 1, first.length() - 1),
+                    store.get(idOf(store)).getBody());
+        }
+        try (MappedExceptionStore store = MappedExceptionStore.open(file)) {
+            StackTraceCompacter compacter = CompacterFactory.create(store);
+            String again = compacter.compact(exception());
+            assertTrue(again, again.contains("has been thrown #3 times"));
+            //throwing threads leave the store alone
+            assertEquals(2, store.get(idOf(store)).getCount());
+            compacter.flushStore();
+            assertEquals(3, store.get(idOf(store)).getCount());
+        }
+        try (MappedExceptionStore store = MappedExceptionStore.openReadOnly(file)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            MappedExceptionStore.print(store, true, new PrintStream(bytes, true, "UTF-8"));
+            String printed = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+            assertTrue(printed, printed.contains("1 of 4096 slots used"));
+            assertTrue(printed, printed.contains(" 3 times, first seen "));
+            assertTrue(printed, printed.contains("java.lang.IllegalStateException: stored"));
+        }
+    }
+
+    @Test
+    public void testStoreIsSharedUntilClosed() throws Exception {
+        MappedExceptionStore store = MappedExceptionStore.open(file);
+        //another process, for instance the next one of a rolling deploy
+        try (MappedExceptionStore other = MappedExceptionStore.open(file)) {
+            StackTraceCompacter compacter = CompacterFactory.create(store);
+            StackTraceCompacter next = CompacterFactory.create(other);
+            compacter.compact(exception());
+            compacter.compact(exception());
+            next.compact(exception());
+            compacter.flushStore();
+            next.flushStore();
+            next.compact(exception());
+            next.flushStore();
+            compacter.compact(exception());
+            compacter.flushStore();
+            assertEquals(1, store.size());
+            assertEquals(5, other.get(idOf(store)).getCount());
+            assertEquals(0, compacter.getMetrics().getErrors() + next.getMetrics().getErrors());
+        }
+        store.close();
+        store.close();
+        assertTrue(store.isClosed());
+        try {
+            store.get(1L);
+            fail("closed store is used");
+        } catch (IllegalStateException expected) {
+            assertTrue(expected.getMessage().contains("closed"));
+        }
+        //the compacter goes on without the store
+        StackTraceCompacter compacter = CompacterFactory.create(store);
+        assertTrue(compacter.compact(exception()).startsWith("Here's a compacted exception"));
+        //neither restored nor stored
+        assertEquals(2, compacter.getMetrics().getErrors());
+        MappedExceptionStore.open(file).close();
+    }
+
+    @Test
+    public void testRestoredCountsAreNotSummarizedAsRepeats() throws Exception {
+        try (MappedExceptionStore store = MappedExceptionStore.open(file)) {
+            StackTraceCompacter compacter = CompacterFactory.create(store);
+            for (int i = 0; i < 10; i++) {
+                compacter.compact(exception());
+            }
+            compacter.flushStore();
+        }
+        try (MappedExceptionStore store = MappedExceptionStore.open(file)) {
+            List<String> summaries = new ArrayList<>();
+            ExceptionSummaryReporter reporter = new ExceptionSummaryReporter(CompacterFactory.create(store),
+                    summaries::add, LimitedFrequency.createOncePerHour(), 10);
+            reporter.report(exception());
+            reporter.report(exception());
+            reporter.flush();
+            assertEquals(1, summaries.size());
+            assertTrue(summaries.get(0), summaries.get(0).contains(" 2 times, 1 distinct"));
+            assertTrue(summaries.get(0), summaries.get(0).contains("12 in total"));
+        }
+    }
+
+    private static long idOf(MappedExceptionStore store) {
+        long[] id = new long[1];
+        store.forEach(stored -> id[0] = stored.getId());
+        return id[0];
+    }
+
+    private static Exception exception() {
+        Exception exception = new IllegalStateException("stored");
+        exception.setStackTrace(new StackTraceElement[] {
+                new StackTraceElement("com.example.Service", "call", "Service.java", 10),
+                new StackTraceElement("java.lang.Thread", "run", null, 0),
+        });
+        return exception;
+    }
+}
@@ -0,0 +1,105 @@
+package com.nikondsl.utils.stacktrace.tool;
+
+import com.nikondsl.utils.stacktrace.impl.CompactionMode;
+import com.nikondsl.utils.stacktrace.impl.ParsedThrowable;
+import com.nikondsl.utils.stacktrace.impl.StackTraceCompacter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LogCompacterTest {
+    private Path file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = Files.createTempFile("application", ".log");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void testParsedExceptionPrintsTheSame() {
+        Exception root = exception(new IllegalArgumentException("bad argument"), "org.springframework.aop.Proxy", 3);
+        Exception suppressed = exception(new IllegalStateException("not closed"), "java.io.Closer", 2);
+        Exception thrown = exception(new RuntimeException("failed", root), "com.acme.Service", 4);
+        thrown.addSuppressed(suppressed);
+        String trace = printed(thrown);
+        String log = "12:00:00 INFO started\n12:00:01 ERROR request failed\n" + trace + "12:00:02 INFO done\n";
+
+        List<Object> parts = TraceParser.parse(CharBuffer.wrap(log));
+
+        assertEquals(3, parts.size());
+        assertEquals("12:00:00 INFO started\n12:00:01 ERROR request failed\n", parts.get(0).toString());
+        assertEquals(trace, printed((ParsedThrowable) parts.get(1)));
+        assertEquals("12:00:02 INFO done\n", parts.get(2).toString());
+        assertEquals("java.lang.RuntimeException", ((ParsedThrowable) parts.get(1)).getClassName());
+    }
+
+    @Test
+    public void testRepeatedTracesAreCompactedInOrder() throws Exception {
+        String first = printed(exception(new IllegalStateException("order 1"), "org.springframework.web.Handler", 20));
+        String second = printed(exception(new IllegalArgumentException("order 2"), "org.springframework.web.Handler", 20));
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            log.append("line ").append(i).append('\n').append(i % 2 == 0 ? first : second);
+        }
+        Files.write(file, log.toString().getBytes(StandardCharsets.UTF_8));
+        StackTraceCompacter compacter = new StackTraceCompacter(100, 0, TimeUnit.SECONDS);
+        compacter.setMode(CompactionMode.ON);
+
+        StringWriter out = new StringWriter();
+        //chunks of a few traces each, so they are cut and parsed by all threads
+        new LogCompacter(compacter, 4, 4096).compact(file, out);
+
+        List<String> lines = new ArrayList<>();
+        for (String line : out.toString().split("\n")) {
+            if (line.startsWith("line ")) {
+                lines.add(line);
+            }
+        }
+        assertEquals(200, lines.size());
+        assertEquals("line 199", lines.get(199));
+        String compacted = out.toString();
+        assertTrue(compacted.indexOf("Here's a compacted exception") < compacted.indexOf("line 1\n"));
+        assertTrue(compacted.contains("java.lang.IllegalArgumentException: order 2\n\tat \t-- Spring"));
+        assertEquals(2, compacter.getMetrics().getCompactions());
+        assertEquals(198, compacter.getMetrics().getDuplicates());
+        assertTrue(compacted.contains("has been thrown #100 times: java.lang.IllegalArgumentException: order 2\n"));
+        assertNotEquals(compacter.getSeenExceptions().get(0).getId(), compacter.getSeenExceptions().get(1).getId());
+        assertTrue(compacted.length() < log.length() / 10);
+    }
+
+    private static Exception exception(Exception exception, String className, int depth) {
+        StackTraceElement[] frames = new StackTraceElement[depth + 2];
+        for (int i = 0; i < depth; i++) {
+            frames[i] = new StackTraceElement(className + i, "call", "Source" + i + ".java", 10 + i);
+        }
+        frames[depth] = new StackTraceElement("sun.reflect.NativeMethodAccessorImpl", "invoke0", null, -2);
+        frames[depth + 1] = new StackTraceElement("com.acme.Main", "main", "Main.java", 5);
+        exception.setStackTrace(frames);
+        return exception;
+    }
+
+    private static String printed(Throwable throwable) {
+        StringWriter result = new StringWriter();
+        throwable.printStackTrace(new PrintWriter(result));
+        return result.toString().replace(System.lineSeparator(), "\n");
+    }
+}
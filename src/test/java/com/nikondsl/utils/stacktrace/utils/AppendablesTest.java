@@ -0,0 +1,38 @@
+package com.nikondsl.utils.stacktrace.utils;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+public class AppendablesTest {
+
+    @Test
+    public void testNumbersAreWrittenAsToStringDoes() throws Exception {
+        long[] values = {0, 7, 10, 99, 1000, -1, -42, Long.MAX_VALUE, Long.MIN_VALUE, -8_070_450_532_247_928_832L};
+        for (long value : values) {
+            StringBuilder number = new StringBuilder();
+            assertEquals(Long.toString(value).length(), Appendables.appendNumber(value, number));
+            assertEquals(Long.toString(value), number.toString());
+
+            StringBuilder unsigned = new StringBuilder();
+            assertEquals(Long.toUnsignedString(value).length(), Appendables.appendUnsigned(value, unsigned));
+            assertEquals(Long.toUnsignedString(value), unsigned.toString());
+        }
+    }
+
+    @Test
+    public void testSurrogatePairSplitAcrossCallsIsEncoded() {
+        String text = "a\uD83D\uDE00b\uD83D";
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        ByteBufferAppendable appendable = new ByteBufferAppendable(buffer);
+        appendable.append(text, 0, 2);
+        appendable.append(text, 2, 5);
+        //a high surrogate at the very end has no pair
+        appendable.flush();
+        buffer.flip();
+        assertEquals("a\uD83D\uDE00b?", StandardCharsets.UTF_8.decode(buffer).toString());
+    }
+}
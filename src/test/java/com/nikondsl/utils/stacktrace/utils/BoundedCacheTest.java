@@ -0,0 +1,55 @@
+package com.nikondsl.utils.stacktrace.utils;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BoundedCacheTest {
+
+    @Test
+    public void testLeastRecentlyUsedAreEvicted() throws Exception {
+        BoundedCache<Integer, String> cache = new BoundedCache<>(10);
+        for (int i = 0; i < 10; i++) {
+            cache.put(i, "value" + i);
+            Thread.sleep(1);
+        }
+        //touch the oldest one, so it becomes the most recent
+        assertNotNull(cache.get(0));
+        cache.put(10, "value10");
+
+        assertTrue(cache.size() <= 10);
+        assertNotNull(cache.peek(0));
+        assertNotNull(cache.peek(10));
+        assertNull(cache.peek(1));
+        assertTrue(cache.getStatistics().getEvictionCount() >= 1);
+    }
+
+    @Test
+    public void testExpiredEntriesAreAbsent() throws Exception {
+        BoundedCache<Integer, String> cache = new BoundedCache<>(10, 20, TimeUnit.MILLISECONDS);
+        cache.put(1, "one");
+        Thread.sleep(50);
+
+        assertNull(cache.get(1));
+        assertEquals("two", cache.computeIfAbsent(1, key -> "two"));
+        assertEquals(1, cache.getStatistics().getExpirationCount());
+    }
+
+    @Test
+    public void testStatistics() {
+        BoundedCache<Integer, String> cache = new BoundedCache<>(10);
+        cache.computeIfAbsent(1, key -> "one");
+        cache.computeIfAbsent(1, key -> "another");
+        cache.get(2);
+
+        CacheStatistics statistics = cache.getStatistics();
+        assertEquals(1, statistics.getHitCount());
+        assertEquals(2, statistics.getMissCount());
+        assertEquals(1, statistics.getSize());
+    }
+}
@@ -0,0 +1,50 @@
+package com.nikondsl.utils.stacktrace.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class LimitedFrequencyTest {
+
+    @Test
+    public void testOnlyOneThreadIsLetThroughPerPeriod() throws Exception {
+        LimitedFrequency frequency = new LimitedFrequency(500, TimeUnit.MILLISECONDS);
+        assertFalse(frequency.isTimePassed());
+        Thread.sleep(600);
+
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger passed = new AtomicInteger();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < 1000; i++) {
+                    if (frequency.isTimePassed()) {
+                        passed.incrementAndGet();
+                    }
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        //all calls are done well within a period
+        assertEquals(1, passed.get());
+    }
+}